@@ -240,7 +240,7 @@ MY_MUPDF_SRC_FILES := \
 	mupdf/fitz/node_tree.c \
 	mupdf/fitz/res_colorspace.c \
 	mupdf/fitz/res_font.c \
-	mupdf/fitz/res_image.c \
+	mupdf-overlay/fitz/res_image.c \
 	mupdf/fitz/res_shade.c \
 	mupdf/mupdf/font_mono.c \
 	mupdf/mupdf/font_serif.c \
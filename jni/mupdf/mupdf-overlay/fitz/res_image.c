@@ -0,0 +1,27 @@
+#include "fitz_base.h"
+#include "fitz_tree.h"
+
+/* implemented in fitzdraw/render.c */
+void fz_evictcachedimage(fz_image *image);
+
+fz_image *
+fz_keepimage(fz_image *image)
+{
+	image->refs ++;
+	return image;
+}
+
+void
+fz_dropimage(fz_image *image)
+{
+	if (image && --image->refs == 0)
+	{
+		fz_evictcachedimage(image);
+		if (image->freefunc)
+			image->freefunc(image);
+		if (image->cs)
+			fz_dropcolorspace(image->cs);
+		fz_free(image);
+	}
+}
+
@@ -2,6 +2,8 @@
 #include "fitz_tree.h"
 #include "fitz_draw.h"
 
+#include <pthread.h>
+
 #ifdef _MSC_VER
 #define noDebug printf
 #ifndef DEBUG
@@ -23,6 +25,38 @@
 
 static fz_error rendernode(fz_renderer *gc, fz_node *node, fz_matrix ctm);
 
+/* renderers may run on several threads, but they share font faces */
+static pthread_mutex_t glyphlock = PTHREAD_MUTEX_INITIALIZER;
+
+/*
+ * Cooperative abort: the caller publishes a flag for the current thread,
+ * the renderer polls it between nodes and image bands and bails out.
+ */
+static pthread_key_t abortkey;
+static pthread_once_t abortkeyonce = PTHREAD_ONCE_INIT;
+
+static void
+createabortkey(void)
+{
+	pthread_key_create(&abortkey, NULL);
+}
+
+void
+fz_setrenderabortflag(volatile int *flag)
+{
+	pthread_once(&abortkeyonce, createabortkey);
+	pthread_setspecific(abortkey, (void*)flag);
+}
+
+int
+fz_isrenderaborted(void)
+{
+	volatile int *flag;
+	pthread_once(&abortkeyonce, createabortkey);
+	flag = pthread_getspecific(abortkey);
+	return flag && *flag;
+}
+
 fz_error
 fz_newrenderer(fz_renderer **gcp, fz_colorspace *pcm, int maskonly, int gcmem)
 {
@@ -347,7 +381,9 @@ rendertext(fz_renderer *gc, fz_textnode *text, fz_matrix ctm)
 		trm.e = QUANT(trm.e - fz_floor(trm.e), HSUBPIX);
 		trm.f = QUANT(trm.f - fz_floor(trm.f), VSUBPIX);
 
+		pthread_mutex_lock(&glyphlock);
 		error = fz_renderglyph(gc->cache, &glyph, text->font, gid, trm);
+		pthread_mutex_unlock(&glyphlock);
 		if (error)
 			return error;
 
@@ -362,8 +398,191 @@ rendertext(fz_renderer *gc, fz_textnode *text, fz_matrix ctm)
 
 /*
  * Image
+ *
+ * Decoding an image is by far the most expensive part of drawing scanned
+ * pages, and every tile of the page draws the whole image again. So images
+ * are kept decoded, scaled and converted the way they are drawn, keyed by
+ * image and scale, for all renderers to share within a byte budget.
  */
 
+typedef struct fz_imagecacheentry_s fz_imagecacheentry;
+
+struct fz_imagecacheentry_s
+{
+	fz_image *image;
+	int dx, dy;
+	fz_pixmap *tile;
+	int size;
+	/* renders drawing the tile, it's freed by the last one once evicted */
+	int users;
+	int evicted;
+	fz_imagecacheentry *prev;
+	fz_imagecacheentry *next;
+};
+
+static pthread_mutex_t imagecachelock = PTHREAD_MUTEX_INITIALIZER;
+/* most recently used first */
+static fz_imagecacheentry *imagecache = nil;
+static int imagecachesize = 0;
+static int imagecachemax = 0;
+
+static void
+unlinkimage(fz_imagecacheentry *entry)
+{
+	if (entry->prev)
+		entry->prev->next = entry->next;
+	else
+		imagecache = entry->next;
+	if (entry->next)
+		entry->next->prev = entry->prev;
+	entry->prev = entry->next = nil;
+}
+
+static void
+linkimage(fz_imagecacheentry *entry)
+{
+	entry->prev = nil;
+	entry->next = imagecache;
+	if (imagecache)
+		imagecache->prev = entry;
+	imagecache = entry;
+}
+
+static void
+freeimageentry(fz_imagecacheentry *entry)
+{
+	fz_droppixmap(entry->tile);
+	fz_free(entry);
+}
+
+/* called with imagecachelock held */
+static void
+evictimage(fz_imagecacheentry *entry)
+{
+	unlinkimage(entry);
+	imagecachesize -= entry->size;
+	entry->evicted = 1;
+	if (!entry->users)
+		freeimageentry(entry);
+}
+
+/* called with imagecachelock held */
+static void
+trimimagecache(void)
+{
+	fz_imagecacheentry *entry;
+	fz_imagecacheentry *prev;
+
+	if (imagecachesize <= imagecachemax || !imagecache)
+		return;
+	for (entry = imagecache; entry->next; entry = entry->next)
+		;
+	for (; entry && imagecachesize > imagecachemax; entry = prev)
+	{
+		prev = entry->prev;
+		evictimage(entry);
+	}
+}
+
+void
+fz_setimagecachesize(int size)
+{
+	pthread_mutex_lock(&imagecachelock);
+	imagecachemax = size;
+	trimimagecache();
+	pthread_mutex_unlock(&imagecachelock);
+}
+
+/* called from fz_dropimage, the address may be reused by another image */
+void
+fz_evictcachedimage(fz_image *image)
+{
+	fz_imagecacheentry *entry;
+	fz_imagecacheentry *next;
+
+	pthread_mutex_lock(&imagecachelock);
+	for (entry = imagecache; entry; entry = next)
+	{
+		next = entry->next;
+		if (entry->image == image)
+			evictimage(entry);
+	}
+	pthread_mutex_unlock(&imagecachelock);
+}
+
+static fz_imagecacheentry *
+acquirecachedimage(fz_image *image, int dx, int dy)
+{
+	fz_imagecacheentry *entry;
+
+	pthread_mutex_lock(&imagecachelock);
+	for (entry = imagecache; entry; entry = entry->next)
+	{
+		if (entry->image == image && entry->dx == dx && entry->dy == dy)
+		{
+			entry->users++;
+			unlinkimage(entry);
+			linkimage(entry);
+			break;
+		}
+	}
+	pthread_mutex_unlock(&imagecachelock);
+	return entry;
+}
+
+/* takes over the tile if it's cached, returns nil if it isn't */
+static fz_imagecacheentry *
+cacheimage(fz_image *image, int dx, int dy, fz_pixmap *tile)
+{
+	fz_imagecacheentry *entry;
+	int size = tile->w * tile->h * tile->n;
+
+	pthread_mutex_lock(&imagecachelock);
+	if (size > imagecachemax)
+	{
+		pthread_mutex_unlock(&imagecachelock);
+		return nil;
+	}
+	/* another render may have decoded the image meanwhile */
+	for (entry = imagecache; entry; entry = entry->next)
+	{
+		if (entry->image == image && entry->dx == dx && entry->dy == dy)
+		{
+			entry->users++;
+			pthread_mutex_unlock(&imagecachelock);
+			fz_droppixmap(tile);
+			return entry;
+		}
+	}
+	entry = fz_malloc(sizeof(fz_imagecacheentry));
+	if (!entry)
+	{
+		pthread_mutex_unlock(&imagecachelock);
+		return nil;
+	}
+	entry->image = image;
+	entry->dx = dx;
+	entry->dy = dy;
+	entry->tile = tile;
+	entry->size = size;
+	entry->users = 1;
+	entry->evicted = 0;
+	linkimage(entry);
+	imagecachesize += size;
+	trimimagecache();
+	pthread_mutex_unlock(&imagecachelock);
+	return entry;
+}
+
+static void
+releasecachedimage(fz_imagecacheentry *entry)
+{
+	pthread_mutex_lock(&imagecachelock);
+	if (--entry->users == 0 && entry->evicted)
+		freeimageentry(entry);
+	pthread_mutex_unlock(&imagecachelock);
+}
+
 static inline void
 calcimagescale(fz_matrix ctm, int w, int h, int *odx, int *ody)
 {
@@ -401,6 +620,7 @@ renderimage(fz_renderer *gc, fz_imagenode *node, fz_matrix ctm)
 	int x0, y0;
 	int w, h;
 	int tileheight;
+	fz_imagecacheentry *entry;
 
 	DEBUG("image %dx%d %d+%d %s\n{\n", image->w, image->h, image->n, image->a, image->cs?image->cs->name:"(nil)");
 
@@ -414,6 +634,14 @@ renderimage(fz_renderer *gc, fz_imagenode *node, fz_matrix ctm)
 
 	calcimagescale(ctm, image->w, image->h, &dx, &dy);
 
+	entry = acquirecachedimage(image, dx, dy);
+	if (entry)
+	{
+		DEBUG("  cached image 1/%d 1/%d\n", dx, dy);
+		tile = entry->tile;
+		goto draw;
+	}
+
 	/* try to fit tile into a typical L2 cachce */
 	tileheight = 512 * 1024 / (image->w * (image->n + image->a));
 	/* tileheight must be an even multiple of dy, except for last band */
@@ -439,6 +667,11 @@ renderimage(fz_renderer *gc, fz_imagenode *node, fz_matrix ctm)
 			tile->h = tileheight;
 			DEBUG("  tile xywh=%d %d %d %d sxsy=1/%d 1/%d\n",
 				0, y, image->w, tileheight, dx, dy);
+			if (fz_isrenderaborted()) {
+				error = fz_throw("rendering aborted");
+				goto cleanup1;
+			}
+
 			error = image->loadtile(image, tile);
 			if (error)
 				goto cleanup1;
@@ -487,6 +720,12 @@ renderimage(fz_renderer *gc, fz_imagenode *node, fz_matrix ctm)
 		tile = temp;
 	}
 
+	entry = cacheimage(image, dx, dy, tile);
+	if (entry)
+		tile = entry->tile;
+
+draw:
+	error = fz_okay;
 	imgmat.a = 1.0 / tile->w;
 	imgmat.b = 0.0;
 	imgmat.c = 0.0;
@@ -523,7 +762,7 @@ renderimage(fz_renderer *gc, fz_imagenode *node, fz_matrix ctm)
 			else
 				error = fz_newpixmapwithrect(&gc->dest, clip, 1);
 			if (error)
-				goto cleanup;
+				goto cleanupdraw;
 
 			if (image->cs)
 				fz_img_4c4(PSRC, PDST(gc->dest), PCTM);
@@ -553,8 +792,12 @@ renderimage(fz_renderer *gc, fz_imagenode *node, fz_matrix ctm)
 
 	DEBUG("}\n");
 
-	fz_droppixmap(tile);
-	return fz_okay;
+cleanupdraw:
+	if (entry)
+		releasecachedimage(entry);
+	else
+		fz_droppixmap(tile);
+	return error;
 
 cleanup1:
 	fz_droppixmap(temp);
@@ -709,7 +952,20 @@ renderover(fz_renderer *gc, fz_overnode *over, fz_matrix ctm)
 	{
 		error = rendernode(gc, child, ctm);
 		if (error)
+		{
+			/* leave the renderer reusable after an aborted render */
+			if (gc->dest)
+			{
+				fz_droppixmap(gc->dest);
+				gc->dest = nil;
+			}
+			if (cluster)
+			{
+				fz_droppixmap(gc->over);
+				gc->over = nil;
+			}
 			return error;
+		}
 		if (gc->dest)
 		{
 			blendover(gc, gc->dest, gc->over);
@@ -844,6 +1100,12 @@ rendermask(fz_renderer *gc, fz_masknode *mask, fz_matrix ctm)
 	return fz_okay;
 
 cleanup:
+	if (gc->dest && gc->dest != shapepix && gc->dest != colorpix)
+		fz_droppixmap(gc->dest);
+	gc->dest = nil;
+	gc->clip = oldclip;
+	gc->over = oldover;
+	gc->maskonly = oldmaskonly;
 	if (shapepix) fz_droppixmap(shapepix);
 	if (colorpix) fz_droppixmap(colorpix);
 	return error;
@@ -859,6 +1121,9 @@ rendernode(fz_renderer *gc, fz_node *node, fz_matrix ctm)
 	if (!node)
 		return fz_okay;
 
+	if (fz_isrenderaborted())
+		return fz_throw("rendering aborted");
+
 	gc->flag = FNONE;
 	if (gc->over)
 		gc->flag |= FOVER;
@@ -991,6 +1256,11 @@ fz_rendertreeover(fz_renderer *gc, fz_pixmap *dest, fz_tree *tree, fz_matrix ctm
 	error = rendernode(gc, tree->root, ctm);
 	if (error)
 	{
+		if (gc->dest)
+		{
+			fz_droppixmap(gc->dest);
+			gc->dest = nil;
+		}
 		gc->over = nil;
 		return error;
 	}
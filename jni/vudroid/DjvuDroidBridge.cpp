@@ -7,16 +7,32 @@
 
 #include <jni.h>
 #include <stdlib.h>
+#include <string.h>
+#include <pthread.h>
 #include <DjvuDroidTrace.h>
 #include <ddjvuapi.h>
 
 #define HANDLE_TO_DOC(handle) (ddjvu_document_t*)handle
 #define HANDLE(ptr) (jlong)ptr
 
+/*
+ * DjVuLibre is built with THREADMODEL=NOTHREADS and exception emulation,
+ * so every call into it has to be serialized, whichever thread makes it.
+ */
+static pthread_mutex_t djvuLock = PTHREAD_MUTEX_INITIALIZER;
+
+class DjvuLock
+{
+public:
+	DjvuLock() { pthread_mutex_lock(&djvuLock); }
+	~DjvuLock() { pthread_mutex_unlock(&djvuLock); }
+};
+
 extern "C" jlong
 Java_org_vudroid_djvudroid_codec_DjvuContext_create(JNIEnv *env,
                                     jclass cls)
 {
+	DjvuLock lock;
 	ddjvu_context_t* context = ddjvu_context_create(DJVU_DROID);
 	DEBUG_PRINT("Creating context: %x", context);
 	return (jlong) context;
@@ -27,15 +43,119 @@ Java_org_vudroid_djvudroid_codec_DjvuContext_free(JNIEnv *env,
                                     jclass cls,
                                     jlong contextHandle)
 {
+	DjvuLock lock;
 	ddjvu_context_release((ddjvu_context_t *)contextHandle);
 }
 
+/*
+ * DjVuLibre can't block in ddjvu_message_wait without threads, so it calls back
+ * whoever posts a message instead, and the pump thread sleeps on a condition
+ * until then. The poster holds djvuLock, so the message is queued by the time
+ * the pump gets the lock to handle it.
+ */
+struct MessagePump
+{
+	ddjvu_context_t* context;
+	pthread_mutex_t mutex;
+	pthread_cond_t cond;
+	bool pending;
+	bool stopped;
+};
+
+static void messagePosted(ddjvu_context_t* context, void* closure)
+{
+	MessagePump* pump = (MessagePump*)closure;
+	pthread_mutex_lock(&pump->mutex);
+	pump->pending = true;
+	pthread_cond_signal(&pump->cond);
+	pthread_mutex_unlock(&pump->mutex);
+}
+
+extern "C" jlong
+Java_org_vudroid_djvudroid_codec_DjvuContext_createMessagePump(JNIEnv *env,
+                                    jclass cls,
+                                    jlong contextHandle)
+{
+	DjvuLock lock;
+	MessagePump* pump = new MessagePump();
+	pump->context = (ddjvu_context_t*)contextHandle;
+	pthread_mutex_init(&pump->mutex, NULL);
+	pthread_cond_init(&pump->cond, NULL);
+	// messages posted before the callback was set are still waiting
+	pump->pending = true;
+	pump->stopped = false;
+	ddjvu_message_set_callback(pump->context, messagePosted, pump);
+	return (jlong)pump;
+}
+
+extern "C" jboolean
+Java_org_vudroid_djvudroid_codec_DjvuContext_waitForMessages(JNIEnv *env,
+                                    jclass cls,
+                                    jlong pumpHandle)
+{
+	MessagePump* pump = (MessagePump*)pumpHandle;
+	pthread_mutex_lock(&pump->mutex);
+	while (!pump->pending && !pump->stopped)
+	{
+		pthread_cond_wait(&pump->cond, &pump->mutex);
+	}
+	pump->pending = false;
+	jboolean running = !pump->stopped;
+	pthread_mutex_unlock(&pump->mutex);
+	return running;
+}
+
+extern "C" void
+Java_org_vudroid_djvudroid_codec_DjvuContext_stopMessagePump(JNIEnv *env,
+                                    jclass cls,
+                                    jlong pumpHandle)
+{
+	MessagePump* pump = (MessagePump*)pumpHandle;
+	pthread_mutex_lock(&pump->mutex);
+	pump->stopped = true;
+	pthread_cond_signal(&pump->cond);
+	pthread_mutex_unlock(&pump->mutex);
+}
+
+extern "C" void
+Java_org_vudroid_djvudroid_codec_DjvuContext_freeMessagePump(JNIEnv *env,
+                                    jclass cls,
+                                    jlong pumpHandle)
+{
+	DjvuLock lock;
+	MessagePump* pump = (MessagePump*)pumpHandle;
+	ddjvu_message_set_callback(pump->context, NULL, NULL);
+	pthread_cond_destroy(&pump->cond);
+	pthread_mutex_destroy(&pump->mutex);
+	delete pump;
+}
+
+extern "C" jlong
+Java_org_vudroid_djvudroid_codec_DjvuContext_getCacheSize(JNIEnv *env,
+                                    jclass cls,
+                                    jlong contextHandle)
+{
+	DjvuLock lock;
+	return ddjvu_cache_get_size((ddjvu_context_t*)contextHandle);
+}
+
+extern "C" void
+Java_org_vudroid_djvudroid_codec_DjvuContext_setCacheSize(JNIEnv *env,
+                                    jclass cls,
+                                    jlong contextHandle,
+                                    jlong cacheSize)
+{
+	DjvuLock lock;
+	ddjvu_cache_set_size((ddjvu_context_t*)contextHandle, cacheSize);
+}
+
 extern "C" jlong
 Java_org_vudroid_djvudroid_codec_DjvuDocument_open(JNIEnv *env,
                                     jclass cls,
                                     jlong contextHandle,
                                     jstring fileName)
 {
+	DjvuLock lock;
     const char* fileNameString = env->GetStringUTFChars(fileName, NULL);
 	DEBUG_PRINT("Opening document: %s", fileNameString);
     jlong docHandle = (jlong)(ddjvu_document_create_by_filename((ddjvu_context_t*)(contextHandle), fileNameString, FALSE));
@@ -43,18 +163,6 @@ Java_org_vudroid_djvudroid_codec_DjvuDocument_open(JNIEnv *env,
     return docHandle;
 }
 
-void CallDocInfoCallback(JNIEnv* env, jobject thiz, const ddjvu_message_t* msg)
-{
-	DEBUG_WRITE("Calling handleDocInfo callback");
-	jclass cls = env->GetObjectClass(thiz);
-	if (!cls)
-		return;
-    jmethodID handleDocInfoId = env->GetMethodID(cls, "handleDocInfo", "()V");
-    if (!handleDocInfoId)
-    	return;
-    env->CallVoidMethod(thiz, handleDocInfoId);
-}
-
 void ThrowDjvuError(JNIEnv* env, const ddjvu_message_t* msg)
 {
     jclass exceptionClass = env->FindClass("java/lang/RuntimeException");
@@ -68,15 +176,19 @@ void ThrowDjvuError(JNIEnv* env, const ddjvu_message_t* msg)
     env->ThrowNew(exceptionClass, msg->m_error.message);
 }
 
-extern "C" void
+extern "C" jboolean
 Java_org_vudroid_djvudroid_codec_DjvuContext_handleMessage(JNIEnv *env,
                                     jobject thiz,
                                     jlong contextHandle)
 {
+	DjvuLock lock;
 	const ddjvu_message_t *msg;
 	ddjvu_context_t* ctx = (ddjvu_context_t*)(contextHandle);
 	DEBUG_PRINT("handleMessage for ctx: %x",ctx);
-	if(msg = ddjvu_message_peek(ctx))
+	if (!(msg = ddjvu_message_peek(ctx)))
+	{
+		return FALSE;
+	}
     {
         switch (msg->m_any.tag)
         {
@@ -85,14 +197,12 @@ Java_org_vudroid_djvudroid_codec_DjvuContext_handleMessage(JNIEnv *env,
                 break;
             case DDJVU_INFO:
                 break;
-            case DDJVU_DOCINFO:
-            	CallDocInfoCallback(env, thiz, msg);
-            	break;
             default:
                 break;
         }
         ddjvu_message_pop(ctx);
 	}
+	return TRUE;
 }
 
 extern "C" jlong
@@ -101,6 +211,7 @@ Java_org_vudroid_djvudroid_codec_DjvuDocument_getPage(JNIEnv *env,
                                     jlong docHandle,
                                     jint pageNumber)
 {
+	DjvuLock lock;
 	DEBUG_PRINT("getPage num: %d", pageNumber);
 	return (jlong)ddjvu_page_create_by_pageno((ddjvu_document_t*)docHandle, pageNumber);
 }
@@ -110,6 +221,7 @@ Java_org_vudroid_djvudroid_codec_DjvuDocument_free(JNIEnv *env,
                                     jclass cls,
                                     jlong docHandle)
 {
+	DjvuLock lock;
 	ddjvu_document_release((ddjvu_document_t*)docHandle);
 }
 
@@ -118,15 +230,44 @@ Java_org_vudroid_djvudroid_codec_DjvuDocument_getPageCount(JNIEnv *env,
                                     jclass cls,
                                     jlong docHandle)
 {
+	DjvuLock lock;
 	return ddjvu_document_get_pagenum(HANDLE_TO_DOC(docHandle));
 }
 
 extern "C" jboolean
-Java_org_vudroid_djvudroid_codec_DjvuPage_isDecodingDone(JNIEnv *env,
+Java_org_vudroid_djvudroid_codec_DjvuDocument_isInfoDecoded(JNIEnv *env,
                                     jclass cls,
-                                    jlong pageHandle)
+                                    jlong docHandle)
+{
+	DjvuLock lock;
+	return ddjvu_document_decoding_done(HANDLE_TO_DOC(docHandle));
+}
+
+extern "C" void
+Java_org_vudroid_djvudroid_codec_DjvuDocument_getPageSizes(JNIEnv *env,
+                                    jclass cls,
+                                    jlong docHandle,
+                                    jint firstPageNumber,
+                                    jintArray sizes)
 {
-	return ddjvu_page_decoding_done((ddjvu_page_t*)pageHandle);
+	DjvuLock lock;
+	jsize count = env->GetArrayLength(sizes) / 2;
+	jint* pSizes = env->GetIntArrayElements(sizes, NULL);
+	for (int i = 0; i < count; i++)
+	{
+		ddjvu_pageinfo_t info;
+		// page info of bundled documents comes with the directory, indirect ones may still be loading
+		if (ddjvu_document_get_pageinfo(HANDLE_TO_DOC(docHandle), firstPageNumber + i, &info) != DDJVU_JOB_OK)
+		{
+			pSizes[2 * i] = 0;
+			pSizes[2 * i + 1] = 0;
+			continue;
+		}
+		bool swap = info.rotation == DDJVU_ROTATE_90 || info.rotation == DDJVU_ROTATE_270;
+		pSizes[2 * i] = swap ? info.height : info.width;
+		pSizes[2 * i + 1] = swap ? info.width : info.height;
+	}
+	env->ReleaseIntArrayElements(sizes, pSizes, 0);
 }
 
 extern "C" jint
@@ -134,6 +275,7 @@ Java_org_vudroid_djvudroid_codec_DjvuPage_getWidth(JNIEnv *env,
                                     jclass cls,
                                     jlong pageHangle)
 {
+	DjvuLock lock;
 	return ddjvu_page_get_width((ddjvu_page_t*)pageHangle);
 }
 
@@ -142,43 +284,184 @@ Java_org_vudroid_djvudroid_codec_DjvuPage_getHeight(JNIEnv *env,
                                     jclass cls,
                                     jlong pageHangle)
 {
+	DjvuLock lock;
 	return ddjvu_page_get_height((ddjvu_page_t*)pageHangle);
 }
 
+extern "C" jint
+Java_org_vudroid_djvudroid_codec_DjvuPage_getPageType(JNIEnv *env,
+                                    jclass cls,
+                                    jlong pageHangle)
+{
+	DjvuLock lock;
+	return ddjvu_page_get_type((ddjvu_page_t*)pageHangle);
+}
+
+/*
+ * DjVuLibre doesn't report memory use through ddjvuapi,
+ * so estimate the decoded layers from page size and type.
+ */
+extern "C" jlong
+Java_org_vudroid_djvudroid_codec_DjvuPage_getMemorySize(JNIEnv *env,
+                                    jclass cls,
+                                    jlong pageHangle)
+{
+	DjvuLock lock;
+	ddjvu_page_t* page = (ddjvu_page_t*)pageHangle;
+	jlong pixels = (jlong)ddjvu_page_get_width(page) * ddjvu_page_get_height(page);
+	switch (ddjvu_page_get_type(page))
+	{
+		case DDJVU_PAGETYPE_BITONAL:
+			// JB2 mask
+			return pixels / 8;
+		case DDJVU_PAGETYPE_PHOTO:
+			// IW44 wavelet coefficients for three colour planes at full resolution
+			return pixels * 2;
+		case DDJVU_PAGETYPE_COMPOUND:
+			// JB2 mask over IW44 background at a third of the resolution
+			return pixels / 8 + pixels * 2 / 3;
+		default:
+			return pixels;
+	}
+}
+
+/* rows rendered between two polls of the abort flag */
+#define RENDER_STRIP_HEIGHT 128
+
+/* formats never change once set up, so each is shared by all renders; guarded by djvuLock */
+static ddjvu_format_t *rgb565Format = NULL;
+static ddjvu_format_t *rgb565DitheredFormat = NULL;
+static ddjvu_format_t *argb8888Format = NULL;
+static ddjvu_format_t *grey8Format = NULL;
+
+static ddjvu_format_t *createFormat(ddjvu_format_style_t style, int nargs, unsigned int *args)
+{
+	ddjvu_format_t *format = ddjvu_format_create(style, nargs, args);
+	ddjvu_format_set_row_order(format, TRUE);
+	ddjvu_format_set_y_direction(format, TRUE);
+	return format;
+}
+
+/*
+ * Picks the format laid out like the bitmap: 1 byte per pixel is grey for
+ * ALPHA_8, 2 is RGB_565, 4 is ARGB_8888 which is R, G, B, A in memory.
+ */
+static ddjvu_format_t *getPixelFormat(int bytesPerPixel, bool dither)
+{
+	if (bytesPerPixel == 1)
+	{
+		if (!grey8Format)
+		{
+			grey8Format = createFormat(DDJVU_FORMAT_GREY8, 0, NULL);
+		}
+		return grey8Format;
+	}
+	if (bytesPerPixel == 4)
+	{
+		if (!argb8888Format)
+		{
+			// the fourth mask is xored in, it makes pixels opaque
+			unsigned int masks[] = {0x000000FF, 0x0000FF00, 0x00FF0000, 0xFF000000};
+			argb8888Format = createFormat(DDJVU_FORMAT_RGBMASK32, 4, masks);
+		}
+		return argb8888Format;
+	}
+	unsigned int masks[] = {0xF800, 0x07E0, 0x001F};
+	if (dither)
+	{
+		if (!rgb565DitheredFormat)
+		{
+			// DjVuLibre dithers 16 bit formats with an ordered matrix by default
+			rgb565DitheredFormat = createFormat(DDJVU_FORMAT_RGBMASK16, 3, masks);
+		}
+		return rgb565DitheredFormat;
+	}
+	if (!rgb565Format)
+	{
+		rgb565Format = createFormat(DDJVU_FORMAT_RGBMASK16, 3, masks);
+		ddjvu_format_set_ditherbits(rgb565Format, 32);
+	}
+	return rgb565Format;
+}
+
+/* turns grey levels into ink coverage for an ALPHA_8 bitmap */
+static void invertStrip(char *pBuffer, int width, int height, int stride)
+{
+	for (int y = 0; y < height; y++)
+	{
+		unsigned char *row = (unsigned char *)pBuffer + y * stride;
+		for (int x = 0; x < width; x++)
+		{
+			row[x] = 255 - row[x];
+		}
+	}
+}
+
 extern "C" jboolean
 Java_org_vudroid_djvudroid_codec_DjvuPage_renderPage(JNIEnv *env,
                                     jclass cls,
                                     jlong pageHangle,
-                                    jint targetWidth,
-                                    jint targetHeight,
-                                    jfloat pageSliceX,
-                                    jfloat pageSliceY,
-                                    jfloat pageSliceWidth,
-                                    jfloat pageSliceHeight,
-                                    jintArray buffer)
+                                    jint pageWidth,
+                                    jint pageHeight,
+                                    jint regionX,
+                                    jint regionY,
+                                    jint regionWidth,
+                                    jint regionHeight,
+                                    jobject pixels,
+                                    jint stride,
+                                    jint bytesPerPixel,
+                                    jboolean dither,
+                                    jobject abortFlag)
 {
+	DjvuLock lock;
 	DEBUG_WRITE("Rendering page");
 	ddjvu_page_t* page = (ddjvu_page_t*)((pageHangle));
     ddjvu_rect_t pageRect;
     pageRect.x = 0;
     pageRect.y = 0;
-    pageRect.w = targetWidth / pageSliceWidth;
-    pageRect.h = targetHeight / pageSliceHeight;
+    pageRect.w = pageWidth;
+    pageRect.h = pageHeight;
     ddjvu_rect_t targetRect;
-    targetRect.x = pageSliceX * targetWidth / pageSliceWidth;
-    targetRect.y = pageSliceY * targetHeight / pageSliceHeight;
-    targetRect.w = targetWidth;
-    targetRect.h = targetHeight;
-    unsigned int masks[] = {0xFF0000, 0x00FF00, 0x0000FF};
-    ddjvu_format_t* pixelFormat = ddjvu_format_create(DDJVU_FORMAT_RGBMASK32, 3, masks);
-    ddjvu_format_set_row_order(pixelFormat, TRUE);
-    ddjvu_format_set_y_direction(pixelFormat, TRUE);
-
-    char *pBuffer = (char *)env->GetPrimitiveArrayCritical(buffer, 0);
-    jboolean result = ddjvu_page_render(page, DDJVU_RENDER_COLOR, &pageRect, &targetRect, pixelFormat, targetWidth * 4, pBuffer);
-    env->ReleasePrimitiveArrayCritical(buffer, pBuffer, 0);
-
-    ddjvu_format_release(pixelFormat);
+    targetRect.x = regionX;
+    targetRect.y = regionY;
+    targetRect.w = regionWidth;
+    targetRect.h = regionHeight;
+    ddjvu_format_t* pixelFormat = getPixelFormat(bytesPerPixel, dither);
+    // grey levels are inverted into ink coverage, the caller tints it over paper
+    bool inkOnly = bytesPerPixel == 1;
+
+    volatile int *abort = (volatile int *)env->GetDirectBufferAddress(abortFlag);
+    char *pBuffer = (char *)env->GetDirectBufferAddress(pixels);
+    if (!pBuffer)
+    {
+        return FALSE;
+    }
+    jboolean result = TRUE;
+    // DjVuLibre can't be interrupted inside a render call, so render in strips and poll in between
+    ddjvu_rect_t stripRect = targetRect;
+    for (int stripTop = 0; stripTop < regionHeight; stripTop += RENDER_STRIP_HEIGHT)
+    {
+        if (abort && *abort)
+        {
+            DEBUG_WRITE("Rendering aborted");
+            result = FALSE;
+            break;
+        }
+        stripRect.y = targetRect.y + stripTop;
+        stripRect.h = regionHeight - stripTop < RENDER_STRIP_HEIGHT ? regionHeight - stripTop : RENDER_STRIP_HEIGHT;
+        if (!ddjvu_page_render(page, DDJVU_RENDER_COLOR, &pageRect, &stripRect, pixelFormat, stride, pBuffer + stripTop * stride))
+        {
+            // the buffer is reused, so a strip without data would show the previous tile
+            memset(pBuffer + stripTop * stride, inkOnly ? 0 : 0xff, stripRect.h * stride);
+            result = FALSE;
+            continue;
+        }
+        if (inkOnly)
+        {
+            invertStrip(pBuffer + stripTop * stride, stripRect.w, stripRect.h, stride);
+        }
+    }
+
     return result;
 }
 
@@ -187,5 +470,6 @@ Java_org_vudroid_djvudroid_codec_DjvuPage_free(JNIEnv *env,
                                     jclass cls,
                                     jlong pageHangle)
 {
+	DjvuLock lock;
 	ddjvu_page_release((ddjvu_page_t*)pageHangle);
 }
@@ -3,6 +3,7 @@
 #include <android/log.h>
 
 #include <errno.h>
+#include <pthread.h>
 
 #include <fitz.h>
 #include <mupdf.h>
@@ -21,19 +22,46 @@
 	__android_log_print(ANDROID_LOG_INFO, "PdfDroid", args)
 //#define INFO(args...) {}
 
-typedef struct renderdocument_s renderdocument_t;
-struct renderdocument_s
-{
-	pdf_xref *xref;
-	fz_renderer *rast;
-};
+/* one renderer per concurrent decode worker, created on demand */
+#define MAX_RENDERERS 4
 
+/* decoded images shared by all renderers until PdfContext sizes the cache for the device */
+#define IMAGE_CACHE_SIZE (4 * 1024 * 1024)
+
+/* parsed pages are shared by all handles of the same page number and kept while unused */
 typedef struct renderpage_s renderpage_t;
 struct renderpage_s
 {
 	pdf_page *page;
+	int pageno;
+	int refs;
+	long size;
+	renderpage_t *prev;
+	renderpage_t *next;
+};
+
+typedef struct renderdocument_s renderdocument_t;
+struct renderdocument_s
+{
+	pdf_xref *xref;
+	fz_renderer *rast[MAX_RENDERERS];
+	int rastbusy[MAX_RENDERERS];
+	int fitzmemory;
+	/* cached pages, most recently used first */
+	renderpage_t *pages;
+	long pagecachesize;
+	long pagecachemax;
+	/* the Java document plus every page handle, the last one frees the document */
+	int refs;
+	/* guards xref access, the renderer pool, the page cache and refs */
+	pthread_mutex_t lock;
+	pthread_cond_t rastfree;
 };
 
+/* implemented in mupdf-overlay/fitzdraw/render.c */
+void fz_setrenderabortflag(volatile int *flag);
+void fz_setimagecachesize(int size);
+
 JNI_OnLoad(JavaVM *jvm, void *reserved)
 {
 	DEBUG("initializing PdfRender JNI library based on MuPDF");
@@ -41,10 +69,19 @@ JNI_OnLoad(JavaVM *jvm, void *reserved)
 	/* Fitz library setup */
 	fz_cpudetect();
 	fz_accelerate();
+	fz_setimagecachesize(IMAGE_CACHE_SIZE);
 
 	return JNI_VERSION_1_2;
 }
 
+JNIEXPORT void JNICALL
+	Java_org_vudroid_pdfdroid_codec_PdfContext_setImageCacheSize
+	(JNIEnv *env, jclass clazz, jint size)
+{
+	DEBUG("image cache size %d", size);
+	fz_setimagecachesize(size);
+}
+
 #define RUNTIME_EXCEPTION "java/lang/RuntimeException"
 
 void throw_exception(JNIEnv *env, char *message)
@@ -58,11 +95,60 @@ void throw_exception(JNIEnv *env, char *message)
 	(*env)->ThrowNew(env, new_exception, message);
 }
 
+fz_renderer *acquire_renderer(renderdocument_t *doc)
+{
+	fz_renderer *rast = NULL;
+	fz_error error;
+	int i, busy;
+
+	pthread_mutex_lock(&doc->lock);
+	for(;;) {
+		busy = 0;
+		for(i = 0; i < MAX_RENDERERS; i++) {
+			if(doc->rastbusy[i]) {
+				busy++;
+				continue;
+			}
+			if(!doc->rast[i]) {
+				error = fz_newrenderer(&doc->rast[i], pdf_devicergb, 0, doc->fitzmemory);
+				if (error) {
+					doc->rast[i] = NULL;
+					continue;
+				}
+			}
+			doc->rastbusy[i] = 1;
+			rast = doc->rast[i];
+			break;
+		}
+		/* nobody will ever hand a renderer back: out of memory */
+		if(rast || !busy)
+			break;
+		pthread_cond_wait(&doc->rastfree, &doc->lock);
+	}
+	pthread_mutex_unlock(&doc->lock);
+	return rast;
+}
+
+void release_renderer(renderdocument_t *doc, fz_renderer *rast)
+{
+	int i;
+
+	pthread_mutex_lock(&doc->lock);
+	for(i = 0; i < MAX_RENDERERS; i++) {
+		if(doc->rast[i] == rast) {
+			doc->rastbusy[i] = 0;
+			break;
+		}
+	}
+	pthread_cond_signal(&doc->rastfree);
+	pthread_mutex_unlock(&doc->lock);
+}
+
 
 JNIEXPORT jlong JNICALL
 	Java_org_vudroid_pdfdroid_codec_PdfDocument_open
 	(JNIEnv *env, jclass clazz,
-			jint fitzmemory, jstring fname, jstring pwd)
+			jint fitzmemory, jint pagecachemax, jstring fname, jstring pwd)
 {
 	fz_error error;
 	fz_obj *obj;
@@ -81,10 +167,16 @@ JNIEXPORT jlong JNICALL
 		throw_exception(env, "Out of Memory");
 		goto cleanup;
 	}
+	memset(doc, 0, sizeof(renderdocument_t));
+	pthread_mutex_init(&doc->lock, NULL);
+	pthread_cond_init(&doc->rastfree, NULL);
+	doc->fitzmemory = (int) fitzmemory;
+	doc->pagecachemax = pagecachemax;
+	doc->refs = 1;
 
 	/* initialize renderer */
 
-	error = fz_newrenderer(&doc->rast, pdf_devicergb, 0, (int) fitzmemory);
+	error = fz_newrenderer(&doc->rast[0], pdf_devicergb, 0, doc->fitzmemory);
 	if (error) {
 		throw_exception(env, "Cannot create new renderer");
 		goto cleanup;
@@ -162,6 +254,47 @@ cleanup:
 	return (jlong) doc;
 }
 
+static void trimpagecache(renderdocument_t *doc);
+
+/* called once nothing references the document, none of its cached pages is held by then */
+static void freedocument(renderdocument_t *doc)
+{
+	renderpage_t *page;
+	int i;
+
+	while (doc->pages) {
+		page = doc->pages;
+		doc->pages = page->next;
+		pdf_droppage(page->page);
+		fz_free(page);
+	}
+
+	if (doc->xref->store)
+		pdf_dropstore(doc->xref->store);
+
+	pdf_closexref(doc->xref);
+
+	for(i = 0; i < MAX_RENDERERS; i++) {
+		if (doc->rast[i])
+			fz_droprenderer(doc->rast[i]);
+	}
+
+	pthread_cond_destroy(&doc->rastfree);
+	pthread_mutex_destroy(&doc->lock);
+
+	fz_free(doc);
+}
+
+/* drops a reference and frees the document with the last one, called with doc->lock held which it releases */
+static void releasedocument(renderdocument_t *doc)
+{
+	int last = --doc->refs == 0;
+
+	pthread_mutex_unlock(&doc->lock);
+	if (last)
+		freedocument(doc);
+}
+
 JNIEXPORT void JNICALL
 	Java_org_vudroid_pdfdroid_codec_PdfDocument_free
 	(JNIEnv *env, jclass clazz, jlong handle)
@@ -169,14 +302,11 @@ JNIEXPORT void JNICALL
 	renderdocument_t *doc = (renderdocument_t*) handle;
 
 	if(doc) {
-		if (doc->xref->store)
-			pdf_dropstore(doc->xref->store);
-
-		pdf_closexref(doc->xref);
-
-		fz_droprenderer(doc->rast);
-
-		fz_free(doc);
+		pthread_mutex_lock(&doc->lock);
+		/* pages still held are dropped as their handles are freed */
+		doc->pagecachemax = 0;
+		trimpagecache(doc);
+		releasedocument(doc);
 	}
 }
 
@@ -188,6 +318,142 @@ JNIEXPORT jint JNICALL
 	return pdf_getpagecount(doc->xref);
 }
 
+/* page tree walk along the lines of pdf_getpageobject, but for all pages at once and without touching their dicts */
+static void getpagegeometry(fz_obj *node, fz_obj *mediabox, fz_obj *cropbox, fz_obj *rotate,
+		jfloat *geometry, int *pagesp, int count)
+{
+	fz_obj *type;
+	fz_obj *kids;
+	fz_obj *obj;
+	fz_rect bbox;
+	jfloat *pagegeometry;
+	int ispage;
+	int i;
+
+	if (!fz_isdict(node) || *pagesp >= count)
+		return;
+
+	type = fz_dictgets(node, "Type");
+	kids = fz_dictgets(node, "Kids");
+	if (fz_isname(type)) {
+		if (!strcmp(fz_toname(type), "Page"))
+			ispage = 1;
+		else if (!strcmp(fz_toname(type), "Pages"))
+			ispage = 0;
+		else
+			return;
+	} else {
+		ispage = !kids;
+	}
+
+	if (!ispage) {
+		obj = fz_dictgets(node, "MediaBox");
+		if (obj) mediabox = obj;
+		obj = fz_dictgets(node, "CropBox");
+		if (obj) cropbox = obj;
+		obj = fz_dictgets(node, "Rotate");
+		if (obj) rotate = obj;
+
+		for (i = 0; i < fz_arraylen(kids); i++) {
+			obj = fz_arrayget(kids, i);
+			/* prevent infinite recursion possible in maliciously crafted PDFs */
+			if (obj == node)
+				return;
+			getpagegeometry(obj, mediabox, cropbox, rotate, geometry, pagesp, count);
+		}
+		return;
+	}
+
+	pagegeometry = geometry + 5 * (*pagesp)++;
+
+	/* the same bounds pdf_loadpage picks */
+	obj = fz_dictgets(node, "CropBox");
+	if (!obj) obj = cropbox;
+	if (!obj) obj = fz_dictgets(node, "MediaBox");
+	if (!obj) obj = mediabox;
+	if (fz_isarray(obj)) {
+		bbox = pdf_torect(obj);
+		pagegeometry[0] = MIN(bbox.x0, bbox.x1);
+		pagegeometry[1] = MIN(bbox.y0, bbox.y1);
+		pagegeometry[2] = MAX(bbox.x0, bbox.x1);
+		pagegeometry[3] = MAX(bbox.y0, bbox.y1);
+	}
+
+	obj = fz_dictgets(node, "Rotate");
+	if (!obj) obj = rotate;
+	if (fz_isint(obj))
+		pagegeometry[4] = fz_toint(obj);
+}
+
+JNIEXPORT jint JNICALL
+	Java_org_vudroid_pdfdroid_codec_PdfDocument_getPageGeometry
+	(JNIEnv *env, jclass clazz, jlong handle, jfloatArray geometryarray)
+{
+	renderdocument_t *doc = (renderdocument_t*) handle;
+	jfloat *geometry;
+	fz_obj *catalog;
+	int pages = 0;
+
+	/* not critical, the walk may have to read objects from the file */
+	geometry = (*env)->GetFloatArrayElements(env, geometryarray, 0);
+	if (!geometry)
+		return 0;
+
+	pthread_mutex_lock(&doc->lock);
+	catalog = fz_resolveindirect(fz_dictgets(doc->xref->trailer, "Root"));
+	getpagegeometry(fz_dictgets(catalog, "Pages"), nil, nil, nil, geometry,
+			&pages, (*env)->GetArrayLength(env, geometryarray) / 5);
+	pthread_mutex_unlock(&doc->lock);
+
+	(*env)->ReleaseFloatArrayElements(env, geometryarray, geometry, 0);
+	DEBUG("PdfDocument.getPageGeometry(): %d pages", pages);
+	return pages;
+}
+
+static long pagememory(pdf_page *page);
+
+static void unlinkpage(renderdocument_t *doc, renderpage_t *page)
+{
+	if (page->prev)
+		page->prev->next = page->next;
+	else
+		doc->pages = page->next;
+	if (page->next)
+		page->next->prev = page->prev;
+	page->prev = page->next = NULL;
+}
+
+static void linkpage(renderdocument_t *doc, renderpage_t *page)
+{
+	page->prev = NULL;
+	page->next = doc->pages;
+	if (doc->pages)
+		doc->pages->prev = page;
+	doc->pages = page;
+}
+
+/* drops least recently used pages nobody holds until the cache fits, called with doc->lock held */
+static void trimpagecache(renderdocument_t *doc)
+{
+	renderpage_t *page;
+	renderpage_t *prev;
+
+	if (doc->pagecachesize <= doc->pagecachemax || !doc->pages)
+		return;
+	for (page = doc->pages; page->next; page = page->next)
+		;
+	for (; page && doc->pagecachesize > doc->pagecachemax; page = prev) {
+		prev = page->prev;
+		if (page->refs)
+			continue;
+		DEBUG("dropping cached page %d", page->pageno);
+		unlinkpage(doc, page);
+		doc->pagecachesize -= page->size;
+		pdf_droppage(page->page);
+		fz_free(page);
+	}
+}
+
 JNIEXPORT jlong JNICALL
 	Java_org_vudroid_pdfdroid_codec_PdfPage_open
 	(JNIEnv *env, jclass clazz, jlong dochandle, jint pageno)
@@ -196,25 +462,48 @@ JNIEXPORT jlong JNICALL
 	renderpage_t *page;
 	fz_error error;
 	fz_obj *obj;
-	jclass cls;
-	jfieldID fid;
+
+	pthread_mutex_lock(&doc->lock);
+	for (page = doc->pages; page; page = page->next) {
+		if (page->pageno == pageno)
+			break;
+	}
+	if (page) {
+		page->refs++;
+		doc->refs++;
+		unlinkpage(doc, page);
+		linkpage(doc, page);
+		pthread_mutex_unlock(&doc->lock);
+		DEBUG("PdfPage.nativeOpenPage(): cached handle = %p", page);
+		return (jlong) page;
+	}
 
 	page = fz_malloc(sizeof(renderpage_t));
 	if(!page) {
+		pthread_mutex_unlock(&doc->lock);
 		throw_exception(env, "Out of Memory");
 		return (jlong) NULL;
 	}
+	memset(page, 0, sizeof(renderpage_t));
 
 	pdf_flushxref(doc->xref, 0);
 	obj = pdf_getpageobject(doc->xref, pageno);
 	error = pdf_loadpage(&page->page, doc->xref, obj);
 	if (error) {
+		pthread_mutex_unlock(&doc->lock);
+		fz_free(page);
 		throw_exception(env, "error loading page");
-		goto cleanup;
+		return (jlong) NULL;
 	}
 
-cleanup:
-	/* nothing yet */
+	page->pageno = pageno;
+	page->refs = 1;
+	doc->refs++;
+	page->size = sizeof(renderpage_t) + pagememory(page->page);
+	linkpage(doc, page);
+	doc->pagecachesize += page->size;
+	trimpagecache(doc);
+	pthread_mutex_unlock(&doc->lock);
 
 	DEBUG("PdfPage.nativeOpenPage(): return handle = %p", page);
 	return (jlong) page;
@@ -222,159 +511,154 @@ cleanup:
 
 JNIEXPORT void JNICALL
 	Java_org_vudroid_pdfdroid_codec_PdfPage_free
-	(JNIEnv *env, jclass clazz, jlong handle)
+	(JNIEnv *env, jclass clazz, jlong dochandle, jlong handle)
 {
+	renderdocument_t *doc = (renderdocument_t*) dochandle;
 	renderpage_t *page = (renderpage_t*) handle;
 	if(page) {
-		if (page->page)
-			pdf_droppage(page->page);
-
-		fz_free(page);
+		pthread_mutex_lock(&doc->lock);
+		/* stays cached for the next handle of the page while there is room */
+		if (--page->refs == 0)
+			trimpagecache(doc);
+		releasedocument(doc);
 	}
 }
 
-JNIEXPORT void JNICALL
-	Java_org_vudroid_pdfdroid_codec_PdfPage_getMediaBox
-	(JNIEnv *env, jclass clazz, jlong handle, jfloatArray mediabox)
+static long nodememory(fz_node *node)
 {
-	renderpage_t *page = (renderpage_t*) handle;
-	jfloat *bbox = (*env)->GetPrimitiveArrayCritical(env, mediabox, 0);
-	if(!bbox) return;
-	bbox[0] = page->page->mediabox.x0;
-	bbox[1] = page->page->mediabox.y0;
-	bbox[2] = page->page->mediabox.x1;
-	bbox[3] = page->page->mediabox.y1;
-	(*env)->ReleasePrimitiveArrayCritical(env, mediabox, bbox, 0);
+	pdf_image *image;
+
+	switch(node->kind) {
+	case FZ_NPATH:
+		return sizeof(fz_pathnode) + ((fz_pathnode*)node)->cap * sizeof(fz_pathel);
+	case FZ_NTEXT:
+		return sizeof(fz_textnode) + ((fz_textnode*)node)->cap * sizeof(fz_textel);
+	case FZ_NIMAGE:
+		image = (pdf_image*)((fz_imagenode*)node)->image;
+		return sizeof(fz_imagenode) + (image->samples ? image->samples->ep - image->samples->bp : 0);
+	case FZ_NTRANSFORM:
+		return sizeof(fz_transformnode);
+	default:
+		/* the other nodes only add a few fields to the common header */
+		return 2 * sizeof(fz_node);
+	}
 }
 
-
-
-JNIEXPORT void JNICALL
-	Java_org_vudroid_pdfdroid_codec_PdfPage_render
-	(JNIEnv *env, jclass clazz, jlong dochandle, jlong pagehandle,
-		jintArray viewboxarray, jfloatArray matrixarray,
-		jobject byteBuffer, jobject tempBuffer)
+static long pagememory(pdf_page *page)
 {
-	renderdocument_t *doc = (renderdocument_t*) dochandle;
-	renderpage_t *page = (renderpage_t*) pagehandle;
-	fz_error error;
-	fz_matrix ctm;
-	fz_irect viewbox;
-	fz_pixmap *pixmap;
-	jfloat *matrix;
-	jint *viewboxarr;
-	jint *dimen;
-	unsigned short *targetBuffer;
-	int length, val;
-
-	pixmap = fz_malloc(sizeof(fz_pixmap));
-	if(!pixmap) {
-		throw_exception(env, "Out of Memory");
-	}
-
-	/* initialize parameter arrays for MuPDF */
-
-	matrix = (*env)->GetPrimitiveArrayCritical(env, matrixarray, 0);
-	ctm.a = matrix[0];
-	ctm.b = matrix[1];
-	ctm.c = matrix[2];
-	ctm.d = matrix[3];
-	ctm.e = matrix[4];
-	ctm.f = matrix[5];
-	(*env)->ReleasePrimitiveArrayCritical(env, matrixarray, matrix, 0);
-	DEBUG("Matrix: %f %f %f %f %f %f",
-			ctm.a, ctm.b, ctm.c, ctm.d, ctm.e, ctm.f);
-
-	viewboxarr = (*env)->GetPrimitiveArrayCritical(env, viewboxarray, 0);
-	viewbox.x0 = viewboxarr[0];
-	viewbox.y0 = viewboxarr[1];
-	viewbox.x1 = viewboxarr[2];
-	viewbox.y1 = viewboxarr[3];
-	(*env)->ReleasePrimitiveArrayCritical(env, viewboxarray, viewboxarr, 0);
-	DEBUG("Viewbox: %d %d %d %d",
-			viewbox.x0, viewbox.y0, viewbox.x1, viewbox.y1);
-
-	/* do the rendering */
-	DEBUG("doing the rendering...");
-
-	pixmap->x = viewbox.x0;
-	pixmap->y = viewbox.y0;
-	pixmap->w = viewbox.x1 - viewbox.x0;
-	pixmap->h = viewbox.y1 - viewbox.y0;
-	pixmap->n = 4;
-
-	DEBUG("Allocating temp buffer");
-	pixmap->samples = (*env)->GetDirectBufferAddress(env, tempBuffer);
-	if (!pixmap->samples)
-	{
-		goto cleanup;
+	fz_node *node;
+	long size = sizeof(pdf_page);
+
+	if(!page->tree)
+		return size;
+	/* the tree isn't changed after loading, walk it without recursion */
+	node = page->tree->root;
+	while(node) {
+		size += nodememory(node);
+		if(node->first) {
+			node = node->first;
+			continue;
+		}
+		while(node && !node->next)
+			node = node->parent;
+		if(node)
+			node = node->next;
 	}
+	return size;
+}
 
-	DEBUG("Erasing temp buffer by white: %p", pixmap->samples);
-	// white:
-//	memset(pixmap->samples, 0xff, pixmap->w * pixmap->h * pixmap->n);
-
-	DEBUG("RenderTreeOver rast: %p, tree: %p", doc->rast, page->page->tree);
-	// do the actual rendering:
-	error = fz_rendertreeover(doc->rast, pixmap, page->page->tree, ctm);
-//	error = 0;
+JNIEXPORT jlong JNICALL
+	Java_org_vudroid_pdfdroid_codec_PdfPage_getMemorySize
+	(JNIEnv *env, jclass clazz, jlong handle)
+{
+	renderpage_t *page = (renderpage_t*) handle;
 
-	if (error) {
-		DEBUG("error!");
-		throw_exception(env, "error rendering page");
-	}
+	/* measured once when the page is loaded */
+	return page->size;
+}
 
-	DEBUG("Accessing direct buffer");
+/* 4x4 ordered dither matrix, spreads the bits 565 drops over neighbouring pixels */
+static const unsigned char dithermatrix[4][4] = {
+	{ 0,  8,  2, 10},
+	{12,  4, 14,  6},
+	{ 3, 11,  1,  9},
+	{15,  7, 13,  5}
+};
 
-	targetBuffer = (*env)->GetDirectBufferAddress(env, byteBuffer);
-	if (!targetBuffer)
-	{
-		goto cleanup;
-	}
+static inline unsigned char addclamped(unsigned char c, int d)
+{
+	return c + d > 255 ? 255 : c + d;
+}
 
-	/* evil magic: we transform the rendered image's byte order
-	 */
-	if(!error) {
-		DEBUG("Converting image buffer pixel order");
-		length = pixmap->w * pixmap->h;
-		unsigned int *col = pixmap->samples;
-		int c = 0;
-		for(val = 0; val < length; val++) {
-			targetBuffer[val] = (((col[val] & 0xFF000000) >> 16) & 0xF800) |
-					(((col[val] & 0x00FF0000) >> 11) & 0x07E0) |
-					(((col[val] & 0x0000FF00) >> 11) & 0x001E);
+/*
+ * fitz samples are A, R, G, B. They're packed to the layout of the bitmap:
+ * 1 byte per pixel is ink coverage for ALPHA_8, 2 is RGB_565 and
+ * 4 is ARGB_8888 which is R, G, B, A in memory.
+ */
+static void packpixels(unsigned char *pixels, int w, int h, int stride, int bytesperpixel, int dither)
+{
+	unsigned char *src = pixels;
+	unsigned char *dst;
+	unsigned char a, r, g, b;
+	int x, y, d;
+
+	for(y = 0; y < h; y++) {
+		dst = pixels + y * stride;
+		for(x = 0; x < w; x++, src += 4) {
+			a = src[0]; r = src[1]; g = src[2]; b = src[3];
+			switch(bytesperpixel) {
+			case 1:
+				dst[x] = 255 - ((r * 77 + g * 150 + b * 29) >> 8);
+				break;
+			case 4:
+				dst[4 * x] = r;
+				dst[4 * x + 1] = g;
+				dst[4 * x + 2] = b;
+				dst[4 * x + 3] = a;
+				break;
+			default:
+				if(dither) {
+					d = dithermatrix[y & 3][x & 3];
+					r = addclamped(r, d >> 1);
+					g = addclamped(g, d >> 2);
+					b = addclamped(b, d >> 1);
+				}
+				((unsigned short*)dst)[x] = ((r & 0xF8) << 8) | ((g & 0xFC) << 3) | (b >> 3);
+				break;
+			}
 		}
 	}
-
-cleanup:
-
-	fz_free(pixmap);
-
-	DEBUG("PdfView.nativeCreateView() done");
 }
 
-JNIEXPORT void JNICALL
-Java_org_vudroid_pdfdroid_codec_PdfPage_nativeCreateView
-	(JNIEnv *env, jobject this, jlong dochandle, jlong pagehandle,
+/*
+ * Renders straight into a direct buffer which is copied into the bitmap as is.
+ * fitz only draws ARGB samples, so they are drawn into the same buffer and
+ * packed in place: every packed pixel lands at or before its source.
+ */
+JNIEXPORT jboolean JNICALL
+	Java_org_vudroid_pdfdroid_codec_PdfPage_render
+	(JNIEnv *env, jclass clazz, jlong dochandle, jlong pagehandle,
 		jintArray viewboxarray, jfloatArray matrixarray,
-		jintArray bufferarray)
+		jobject pixelbuffer, jint stride, jint bytesperpixel, jboolean dither,
+		jobject abortflag)
 {
 	renderdocument_t *doc = (renderdocument_t*) dochandle;
 	renderpage_t *page = (renderpage_t*) pagehandle;
-	DEBUG("PdfView(%p).nativeCreateView(%p, %p)", this, doc, page);
 	fz_error error;
 	fz_matrix ctm;
 	fz_irect viewbox;
-	fz_pixmap *pixmap;
+	/* fitz only borrows the header during the render, no need to allocate it */
+	fz_pixmap pixmap;
+	fz_renderer *rast;
+	volatile int *abort;
 	jfloat *matrix;
 	jint *viewboxarr;
-	jint *dimen;
-	jint *buffer;
-	int length, val;
+	unsigned char *pixels;
 
-	pixmap = fz_malloc(sizeof(fz_pixmap));
-	if(!pixmap) {
-		throw_exception(env, "Out of Memory");
+	pixels = (*env)->GetDirectBufferAddress(env, pixelbuffer);
+	if(!pixels) {
+		throw_exception(env, "Pixel buffer is not direct");
+		return JNI_FALSE;
 	}
 
 	/* initialize parameter arrays for MuPDF */
@@ -401,43 +685,45 @@ Java_org_vudroid_pdfdroid_codec_PdfPage_nativeCreateView
 
 	/* do the rendering */
 	DEBUG("doing the rendering...");
-	buffer = (*env)->GetPrimitiveArrayCritical(env, bufferarray, 0);
 
-	pixmap->x = viewbox.x0;
-	pixmap->y = viewbox.y0;
-	pixmap->w = viewbox.x1 - viewbox.x0;
-	pixmap->h = viewbox.y1 - viewbox.y0;
-	pixmap->n = 4;
-	pixmap->samples = (void*)buffer;
+	pixmap.x = viewbox.x0;
+	pixmap.y = viewbox.y0;
+	pixmap.w = viewbox.x1 - viewbox.x0;
+	pixmap.h = viewbox.y1 - viewbox.y0;
+	pixmap.n = 4;
+	pixmap.samples = (void*)pixels;
 
-	// white:
-	memset(pixmap->samples, 0xff, pixmap->w * pixmap->h * pixmap->n);
+	// white, fitz draws over the destination so the paper has to be there first:
+	memset(pixmap.samples, 0xff, pixmap.w * pixmap.h * pixmap.n);
 
 	// do the actual rendering:
-	error = fz_rendertreeover(doc->rast, pixmap, page->page->tree, ctm);
+	abort = (*env)->GetDirectBufferAddress(env, abortflag);
+	rast = acquire_renderer(doc);
+	if (rast) {
+		fz_setrenderabortflag(abort);
+		error = fz_rendertreeover(rast, &pixmap, page->page->tree, ctm);
+		fz_setrenderabortflag(NULL);
+		release_renderer(doc, rast);
+	} else {
+		error = fz_throw("cannot create new renderer");
+	}
 
-	/* evil magic: we transform the rendered image's byte order
-	 */
 	if(!error) {
-		DEBUG("Converting image buffer pixel order");
-		length = pixmap->w * pixmap->h;
-		unsigned int *col = pixmap->samples;
-		int c = 0;
-		for(val = 0; val < length; val++) {
-			col[val] = ((col[val] & 0xFF000000) >> 24) |
-					((col[val] & 0x00FF0000) >> 8) |
-					((col[val] & 0x0000FF00) << 8);
-		}
+		DEBUG("Packing pixels to %d bytes per pixel", bytesperpixel);
+		packpixels(pixels, pixmap.w, pixmap.h, stride, bytesperpixel, dither);
 	}
 
-	(*env)->ReleasePrimitiveArrayCritical(env, bufferarray, buffer, 0);
-
-	fz_free(pixmap);
+	if (error && abort && *abort) {
+		DEBUG("rendering aborted");
+		return JNI_FALSE;
+	}
 
 	if (error) {
 		DEBUG("error!");
 		throw_exception(env, "error rendering page");
+		return JNI_FALSE;
 	}
 
-	DEBUG("PdfView.nativeCreateView() done");
+	DEBUG("PdfPage.render() done");
+	return JNI_TRUE;
 }
@@ -0,0 +1,130 @@
+package org.vudroid.core;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+/**
+ * Keeps bitmaps of dropped tiles for rendering new tiles of the same size into them.
+ * While scrolling at one zoom nearly all tiles are equally sized, so they stop being allocated at all.
+ * Sizes used least recently are dropped first, oldest bitmaps of a size first.
+ */
+class BitmapPool
+{
+    private final long maxSize;
+    /**
+     * Non-empty lists of bitmaps of one size, oldest first, least recently used sizes first.
+     */
+    private final LinkedHashMap<String, LinkedList<Bitmap>> bitmapsBySize = new LinkedHashMap<String, LinkedList<Bitmap>>(16, 0.75f, true);
+    private long size;
+    private boolean cleared;
+
+    BitmapPool(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    Bitmap obtain(int width, int height, Bitmap.Config config)
+    {
+        synchronized (this)
+        {
+            final String sizeKey = getSizeKey(width, height, config);
+            final LinkedList<Bitmap> sameSizeBitmaps = bitmapsBySize.get(sizeKey);
+            if (sameSizeBitmaps != null)
+            {
+                final Bitmap bitmap = sameSizeBitmaps.removeLast();
+                if (sameSizeBitmaps.isEmpty())
+                {
+                    bitmapsBySize.remove(sizeKey);
+                }
+                size -= sizeOf(bitmap);
+                return bitmap;
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Takes a bitmap nobody uses anymore, recycles it if it can't be rendered into or doesn't fit.
+     */
+    void offer(Bitmap bitmap)
+    {
+        if (bitmap.isRecycled())
+        {
+            return;
+        }
+        final ArrayList<Bitmap> bitmapsToRecycle = new ArrayList<Bitmap>();
+        synchronized (this)
+        {
+            if (cleared || !bitmap.isMutable() || sizeOf(bitmap) > maxSize)
+            {
+                bitmap.recycle();
+                return;
+            }
+            final String sizeKey = getSizeKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            LinkedList<Bitmap> sameSizeBitmaps = bitmapsBySize.get(sizeKey);
+            if (sameSizeBitmaps == null)
+            {
+                sameSizeBitmaps = new LinkedList<Bitmap>();
+                bitmapsBySize.put(sizeKey, sameSizeBitmaps);
+            }
+            sameSizeBitmaps.addLast(bitmap);
+            size += sizeOf(bitmap);
+            final Iterator<LinkedList<Bitmap>> iterator = bitmapsBySize.values().iterator();
+            while (size > maxSize)
+            {
+                final LinkedList<Bitmap> leastUsedBitmaps = iterator.next();
+                while (size > maxSize && !leastUsedBitmaps.isEmpty())
+                {
+                    final Bitmap oldest = leastUsedBitmaps.removeFirst();
+                    size -= sizeOf(oldest);
+                    bitmapsToRecycle.add(oldest);
+                }
+                if (leastUsedBitmaps.isEmpty())
+                {
+                    iterator.remove();
+                }
+            }
+        }
+        for (Bitmap bitmapToRecycle : bitmapsToRecycle)
+        {
+            bitmapToRecycle.recycle();
+        }
+    }
+
+    /**
+     * Recycles pooled bitmaps, the ones offered afterwards are recycled right away.
+     */
+    void clear()
+    {
+        final ArrayList<Bitmap> bitmapsToRecycle;
+        synchronized (this)
+        {
+            cleared = true;
+            bitmapsToRecycle = new ArrayList<Bitmap>();
+            for (LinkedList<Bitmap> sameSizeBitmaps : bitmapsBySize.values())
+            {
+                bitmapsToRecycle.addAll(sameSizeBitmaps);
+            }
+            bitmapsBySize.clear();
+            size = 0;
+        }
+        for (Bitmap bitmap : bitmapsToRecycle)
+        {
+            bitmap.recycle();
+        }
+    }
+
+    private static long sizeOf(Bitmap bitmap)
+    {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static String getSizeKey(int width, int height, Bitmap.Config config)
+    {
+        return width + "x" + height + config;
+    }
+}
@@ -0,0 +1,26 @@
+package org.vudroid.core;
+
+import org.vudroid.core.codec.CodecPage;
+
+/**
+ * Keeps opened pages within a budget of the native memory their decoded content takes.
+ */
+class CodecPageCache extends RecyclingLruCache<Integer, CodecPage>
+{
+    CodecPageCache(long maxSize)
+    {
+        super(maxSize);
+    }
+
+    @Override
+    protected long sizeOf(CodecPage page)
+    {
+        return page.getMemorySize();
+    }
+
+    @Override
+    protected void recycle(CodecPage page)
+    {
+        page.recycle();
+    }
+}
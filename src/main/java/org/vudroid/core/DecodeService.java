@@ -5,6 +5,7 @@ import android.graphics.Bitmap;
 import android.graphics.RectF;
 import android.net.Uri;
 import android.view.View;
+import org.vudroid.core.codec.PixelFormat;
 
 public interface DecodeService
 {
@@ -14,24 +15,58 @@ public interface DecodeService
 
     void open(Uri fileUri);
 
-    void decodePage(Object decodeKey, int pageNum, DecodeCallback decodeCallback, float zoom, RectF pageSliceBounds);
+    /**
+     * Sets the format tiles are requested in from now on. Tiles are cached per format, the ones rendered before aren't reused.
+     * @param pixelFormat format for all pages, or null to let every page pick its preferred one
+     */
+    void setPixelFormat(PixelFormat pixelFormat);
+
+    void decodePage(Object decodeKey, int pageNum, DecodeCallback decodeCallback, float zoom, RectF pageSliceBounds, DecodePriority decodePriority);
 
     void stopDecoding(Object decodeKey);
 
+    void updateDecodePriorities();
+
+    void releaseBitmap(Bitmap bitmap);
+
     int getEffectivePagesWidth();
 
     int getEffectivePagesHeight();
 
     int getPageCount();
 
-    int getPageWidth(int pageIndex);
-
-    int getPageHeight(int pageIndex);
+    /**
+     * Finds out sizes of all pages in background, without waiting for their tiles to be decoded.
+     */
+    void scanPageSizes(PageSizesListener pageSizesListener);
 
     void recycle();
 
     public interface DecodeCallback
     {
-        void decodeComplete(Bitmap bitmap);
+        /**
+         * Called once or several times per decode: slow tiles first get a quick low resolution preview,
+         * the last call always brings the full quality bitmap.
+         * Every delivered bitmap must be handed back with {@link DecodeService#releaseBitmap(Bitmap)} once it's dropped.
+         */
+        void decodeComplete(Bitmap bitmap, boolean isFinal);
+    }
+
+    public interface PageSizesListener
+    {
+        /**
+         * Called on a decode thread for every scanned chunk of pages, sizes are width and height pairs with zeros for unknown pages.
+         */
+        void pageSizesKnown(int firstPageIndex, int[] sizes);
+    }
+
+    public interface DecodePriority
+    {
+        /**
+         * Evaluated on the UI thread when the task is queued and on every {@link DecodeService#updateDecodePriorities()}.
+         * Pending tasks with lower values are decoded first. The integer part is the task's rank, pending tasks are only
+         * reordered once it changes, the fraction orders tasks of one rank as they were queued.
+         */
+        float getDecodePriority();
     }
 }
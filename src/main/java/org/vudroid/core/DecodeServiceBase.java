@@ -6,37 +6,76 @@ import android.graphics.RectF;
 import android.net.Uri;
 import android.util.Log;
 import android.view.View;
+import org.vudroid.core.codec.AbortToken;
 import org.vudroid.core.codec.CodecContext;
 import org.vudroid.core.codec.CodecDocument;
 import org.vudroid.core.codec.CodecPage;
+import org.vudroid.core.codec.PixelFormat;
+import org.vudroid.core.utils.MD5StringUtil;
 import org.vudroid.core.utils.PathFromUri;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.ref.SoftReference;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DecodeServiceBase implements DecodeService
 {
-    private static final int PAGE_POOL_SIZE = 16;
+    private static final long PAGE_CACHE_SIZE = 16 * 1024 * 1024;
+    private static final int PREVIEW_DOWNSCALE = 4;
+    private static final long PREVIEW_RENDER_TIME_THRESHOLD = 250;
+    private static final long DISK_TILE_CACHE_SIZE = 32 * 1024 * 1024;
+    private static final String DISK_TILE_CACHE_DIRECTORY = "tiles";
+    private static final String PAGE_SIZES_DIRECTORY = "pagesizes";
+    private static final int PAGE_SIZES_SCAN_CHUNK = 32;
+    private static final int MAX_BATCH_SIZE = 16;
+    private static final float MAX_BATCH_AREA_OVERHEAD = 1.5f;
+    private static final DecodePriority BACKGROUND_PRIORITY = new DecodePriority()
+    {
+        public float getDecodePriority()
+        {
+            return Float.MAX_VALUE;
+        }
+    };
     private final CodecContext codecContext;
 
     private View containerView;
     private CodecDocument document;
-    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private final ThreadPoolExecutor executorService;
     public static final String DECODE_SERVICE = "ViewDroidDecodeService";
-    private final Map<Object, Future<?>> decodingFutures = new ConcurrentHashMap<Object, Future<?>>();
-    private final HashMap<Integer, SoftReference<CodecPage>> pages = new HashMap<Integer, SoftReference<CodecPage>>();
+    private final Map<Object, DecodeTask> decodingTasks = new ConcurrentHashMap<Object, DecodeTask>();
+    private final CodecPageCache pageCache = new CodecPageCache(PAGE_CACHE_SIZE);
     private ContentResolver contentResolver;
-    private Queue<Integer> pageEvictionQueue = new LinkedList<Integer>();
     private boolean isRecycled;
+    private final RenderStatistics renderStatistics = new RenderStatistics();
+    private final BitmapPool bitmapPool = new BitmapPool(Runtime.getRuntime().maxMemory() / 16);
+    private final TileCache tileCache = new TileCache(Runtime.getRuntime().maxMemory() / 8, bitmapPool);
+    private DiskTileCache diskTileCache;
+    private File pageSizesFile;
+    private volatile PixelFormat pixelFormat;
 
     public DecodeServiceBase(CodecContext codecContext)
+    {
+        this(codecContext, Runtime.getRuntime().availableProcessors());
+    }
+
+    public DecodeServiceBase(CodecContext codecContext, int decodeThreadCount)
     {
         this.codecContext = codecContext;
+        final int threadCount = Math.max(decodeThreadCount, 1);
+        this.executorService = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+        // idle workers take tasks from the queue by priority instead of picking the next submitted one
+        this.executorService.prestartAllCoreThreads();
     }
 
     public void setContentResolver(ContentResolver contentResolver)
@@ -52,46 +91,260 @@ public class DecodeServiceBase implements DecodeService
 
     public void open(Uri fileUri)
     {
-        document = codecContext.openDocument(PathFromUri.retrieve(contentResolver, fileUri));
+        final String path = PathFromUri.retrieve(contentResolver, fileUri);
+        document = codecContext.openDocument(path);
+        final File cacheDir = containerView.getContext().getCacheDir();
+        final String documentFingerprint = getDocumentFingerprint(path);
+        diskTileCache = new DiskTileCache(new File(cacheDir, DISK_TILE_CACHE_DIRECTORY), documentFingerprint, DISK_TILE_CACHE_SIZE, tileCache);
+        pageSizesFile = new File(new File(cacheDir, PAGE_SIZES_DIRECTORY), documentFingerprint);
+    }
+
+    public void setPixelFormat(PixelFormat pixelFormat)
+    {
+        this.pixelFormat = pixelFormat;
+    }
+
+    private String getDocumentFingerprint(String path)
+    {
+        final File file = new File(path);
+        return MD5StringUtil.md5StringFor(path + ":" + file.length() + ":" + file.lastModified());
     }
 
-    public void decodePage(Object decodeKey, int pageNum, final DecodeCallback decodeCallback, float zoom, RectF pageSliceBounds)
+    public void decodePage(Object decodeKey, int pageNum, final DecodeCallback decodeCallback, float zoom, RectF pageSliceBounds, DecodePriority decodePriority)
     {
-        final DecodeTask decodeTask = new DecodeTask(pageNum, decodeCallback, zoom, decodeKey, pageSliceBounds);
-        synchronized (decodingFutures)
+        final TileCache.TileKey tileKey = new TileCache.TileKey(pageNum, pageSliceBounds, zoom * getTargetWidth(), pixelFormat);
+        final Bitmap cachedBitmap = tileCache.acquire(tileKey);
+        if (cachedBitmap != null)
+        {
+            stopDecoding(decodeKey);
+            decodeCallback.decodeComplete(cachedBitmap, true);
+            return;
+        }
+        final DecodeTask decodeTask = new DecodeTask(pageNum, decodeCallback, zoom, decodeKey, pageSliceBounds, tileKey, decodePriority);
+        decodeTask.future = createFuture(decodeTask, decodePriority.getDecodePriority());
+        synchronized (decodingTasks)
         {
             if (isRecycled) {
                 return;
             }
-            final Future<?> future = executorService.submit(new Runnable()
+            final DecodeTask removed = decodingTasks.put(decodeKey, decodeTask);
+            if (removed != null)
+            {
+                cancel(removed);
+            }
+            executorService.execute(decodeTask.future);
+        }
+    }
+
+    private DecodeFuture createFuture(final DecodeTask decodeTask, float priority)
+    {
+        return new DecodeFuture(decodeTask, decodeTask.decodePriority, priority, new Runnable()
+        {
+            public void run()
             {
-                public void run()
+                try
                 {
-                    try
-                    {
-                        Thread.currentThread().setPriority(Thread.NORM_PRIORITY-1);
-                        performDecode(decodeTask);
-                    }
-                    catch (IOException e)
-                    {
-                        Log.e(DECODE_SERVICE, "Decode fail", e);
-                    }
+                    Thread.currentThread().setPriority(Thread.NORM_PRIORITY-1);
+                    performDecode(decodeTask);
                 }
-            });
-            final Future<?> removed = decodingFutures.put(decodeKey, future);
-            if (removed != null)
+                catch (IOException e)
+                {
+                    Log.e(DECODE_SERVICE, "Decode fail", e);
+                }
+            }
+        });
+    }
+
+    public void scanPageSizes(final PageSizesListener pageSizesListener)
+    {
+        executeInBackground(new Runnable()
+        {
+            public void run()
+            {
+                final int[] storedSizes = loadPageSizes();
+                if (storedSizes != null)
+                {
+                    pageSizesListener.pageSizesKnown(0, storedSizes);
+                    return;
+                }
+                scanPageSizes(pageSizesListener, new int[getPageCount() * 2], 0);
+            }
+        });
+    }
+
+    private void scanPageSizes(final PageSizesListener pageSizesListener, final int[] sizes, final int firstPageIndex)
+    {
+        final int[] chunk = new int[2 * Math.min(PAGE_SIZES_SCAN_CHUNK, sizes.length / 2 - firstPageIndex)];
+        document.getPageSizes(firstPageIndex, chunk);
+        System.arraycopy(chunk, 0, sizes, 2 * firstPageIndex, chunk.length);
+        pageSizesListener.pageSizesKnown(firstPageIndex, chunk);
+        final int nextPageIndex = firstPageIndex + chunk.length / 2;
+        if (nextPageIndex == sizes.length / 2)
+        {
+            storePageSizes(sizes);
+            return;
+        }
+        // one chunk at a time, so tiles requested meanwhile don't wait for the whole document
+        executeInBackground(new Runnable()
+        {
+            public void run()
+            {
+                scanPageSizes(pageSizesListener, sizes, nextPageIndex);
+            }
+        });
+    }
+
+    private int[] loadPageSizes()
+    {
+        if (!pageSizesFile.exists())
+        {
+            return null;
+        }
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(pageSizesFile)));
+            final int[] sizes = new int[in.readInt() * 2];
+            if (sizes.length != getPageCount() * 2)
+            {
+                return null;
+            }
+            for (int i = 0; i < sizes.length; i++)
+            {
+                sizes[i] = in.readInt();
+            }
+            return sizes;
+        }
+        catch (IOException e)
+        {
+            Log.e(DECODE_SERVICE, "Can't read page sizes from " + pageSizesFile, e);
+            return null;
+        }
+        finally
+        {
+            closeQuietly(in);
+        }
+    }
+
+    private void storePageSizes(int[] sizes)
+    {
+        for (int size : sizes)
+        {
+            if (size == 0)
+            {
+                // scan again next time, the missing pages may be known by then
+                return;
+            }
+        }
+        pageSizesFile.getParentFile().mkdirs();
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pageSizesFile)));
+            out.writeInt(sizes.length / 2);
+            for (int size : sizes)
+            {
+                out.writeInt(size);
+            }
+        }
+        catch (IOException e)
+        {
+            Log.e(DECODE_SERVICE, "Can't store page sizes to " + pageSizesFile, e);
+            pageSizesFile.delete();
+        }
+        finally
+        {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable == null)
+        {
+            return;
+        }
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            Log.e(DECODE_SERVICE, "Can't close stream", e);
+        }
+    }
+
+    private void executeInBackground(Runnable runnable)
+    {
+        synchronized (decodingTasks)
+        {
+            if (isRecycled)
             {
-                removed.cancel(false);
+                return;
+            }
+            executorService.execute(new DecodeFuture(null, BACKGROUND_PRIORITY, BACKGROUND_PRIORITY.getDecodePriority(), runnable));
+        }
+    }
+
+    public void updateDecodePriorities()
+    {
+        // moving a future costs a linear removal from the queue, so only futures changing rank are moved
+        final ArrayList<DecodeFuture> rankedFutures = new ArrayList<DecodeFuture>();
+        for (DecodeTask task : decodingTasks.values())
+        {
+            final DecodeFuture future = task.future;
+            final float priority = future.decodePriority.getDecodePriority();
+            if (getRank(priority) != getRank(future.priority))
+            {
+                future.updatedPriority = priority;
+                rankedFutures.add(future);
+            }
+        }
+        if (rankedFutures.isEmpty())
+        {
+            return;
+        }
+        // under the lock batches are claimed and tasks cancelled with, a future is out of the queue while it changes
+        synchronized (decodingTasks)
+        {
+            for (DecodeFuture future : rankedFutures)
+            {
+                // futures workers have taken already can't be removed
+                if (executorService.remove(future))
+                {
+                    future.priority = future.updatedPriority;
+                    executorService.getQueue().add(future);
+                }
             }
         }
     }
 
+    private static double getRank(float priority)
+    {
+        return Math.floor(priority);
+    }
+
+    private void cancel(DecodeTask task)
+    {
+        task.abortToken.abort();
+        final DecodeBatch batch = task.batch;
+        if (batch != null)
+        {
+            batch.taskAborted();
+        }
+        task.future.cancel(false);
+        executorService.remove(task.future);
+    }
+
     public void stopDecoding(Object decodeKey)
     {
-        final Future<?> future = decodingFutures.remove(decodeKey);
-        if (future != null)
+        synchronized (decodingTasks)
         {
-            future.cancel(false);
+            final DecodeTask task = decodingTasks.remove(decodeKey);
+            if (task != null)
+            {
+                cancel(task);
+            }
         }
     }
 
@@ -103,24 +356,216 @@ public class DecodeServiceBase implements DecodeService
             Log.d(DECODE_SERVICE, "Skipping decode task for page " + currentDecodeTask.pageNumber);
             return;
         }
-        Log.d(DECODE_SERVICE, "Starting decode of page: " + currentDecodeTask.pageNumber);
-        CodecPage vuPage = getPage(currentDecodeTask.pageNumber);
-        preloadNextPage(currentDecodeTask.pageNumber);
-
-        if (isTaskDead(currentDecodeTask))
+        final ArrayList<DecodeTask> tasks = claimBatch(currentDecodeTask);
+        Log.d(DECODE_SERVICE, "Starting decode of " + tasks.size() + " tiles of page: " + currentDecodeTask.pageNumber);
+        for (Iterator<DecodeTask> iterator = tasks.iterator(); iterator.hasNext();)
         {
-            return;
+            final DecodeTask task = iterator.next();
+            final Bitmap storedBitmap = diskTileCache.load(task.tileKey);
+            if (storedBitmap != null)
+            {
+                cacheAndFinishDecoding(task, storedBitmap, false);
+                iterator.remove();
+            }
         }
-        Log.d(DECODE_SERVICE, "Start converting map to bitmap");
-        float scale = calculateScale(vuPage) * currentDecodeTask.zoom;
-        final Bitmap bitmap = vuPage.renderBitmap(getScaledWidth(currentDecodeTask, vuPage, scale), getScaledHeight(currentDecodeTask, vuPage, scale), currentDecodeTask.pageSliceBounds);
-        Log.d(DECODE_SERVICE, "Converting map to bitmap finished");
-        if (isTaskDead(currentDecodeTask))
+        if (tasks.isEmpty())
         {
-            bitmap.recycle();
             return;
         }
-        finishDecoding(currentDecodeTask, bitmap);
+        final DecodeBatch batch = new DecodeBatch(tasks);
+        CodecPage vuPage = acquirePage(currentDecodeTask.pageNumber);
+        try
+        {
+            if (batch.abortToken.isAborted())
+            {
+                return;
+            }
+            Log.d(DECODE_SERVICE, "Start converting map to bitmap");
+            float scale = calculateScale(vuPage) * currentDecodeTask.zoom;
+            final int[] widths = new int[batch.tasks.size()];
+            final int[] heights = new int[batch.tasks.size()];
+            int pixels = 0;
+            for (int i = 0; i < widths.length; i++)
+            {
+                widths[i] = getScaledWidth(batch.tasks.get(i), vuPage, scale);
+                heights[i] = getScaledHeight(batch.tasks.get(i), vuPage, scale);
+                pixels += widths[i] * heights[i];
+            }
+            if (isPreviewWorthwhile(pixels))
+            {
+                final int[] previewWidths = new int[widths.length];
+                final int[] previewHeights = new int[heights.length];
+                for (int i = 0; i < widths.length; i++)
+                {
+                    previewWidths[i] = Math.max(widths[i] / PREVIEW_DOWNSCALE, 1);
+                    previewHeights[i] = Math.max(heights[i] / PREVIEW_DOWNSCALE, 1);
+                }
+                final Bitmap[] previews = renderBitmaps(batch, vuPage, previewWidths, previewHeights);
+                if (previews == null)
+                {
+                    return;
+                }
+                for (int i = 0; i < previews.length; i++)
+                {
+                    final DecodeTask task = batch.tasks.get(i);
+                    if (isTaskDead(task))
+                    {
+                        bitmapPool.offer(previews[i]);
+                        continue;
+                    }
+                    task.decodeCallback.decodeComplete(previews[i], false);
+                }
+            }
+            final Bitmap[] bitmaps = renderBitmaps(batch, vuPage, widths, heights);
+            if (bitmaps == null)
+            {
+                return;
+            }
+            Log.d(DECODE_SERVICE, "Converting map to bitmap finished");
+            for (int i = 0; i < bitmaps.length; i++)
+            {
+                cacheAndFinishDecoding(batch.tasks.get(i), bitmaps[i], true);
+            }
+        }
+        finally
+        {
+            releasePage(vuPage);
+        }
+    }
+
+    /**
+     * Takes tasks for neighbouring tiles of the same page and zoom out of the queue, so they're rendered in one pass
+     * over the page together with the given one.
+     */
+    private ArrayList<DecodeTask> claimBatch(DecodeTask currentDecodeTask)
+    {
+        final ArrayList<DecodeTask> batch = new ArrayList<DecodeTask>();
+        batch.add(currentDecodeTask);
+        final RectF union = new RectF(currentDecodeTask.pageSliceBounds);
+        float area = getArea(currentDecodeTask.pageSliceBounds);
+        synchronized (decodingTasks)
+        {
+            for (DecodeTask task : decodingTasks.values())
+            {
+                if (batch.size() == MAX_BATCH_SIZE)
+                {
+                    break;
+                }
+                if (task == currentDecodeTask || task.pageNumber != currentDecodeTask.pageNumber || task.zoom != currentDecodeTask.zoom
+                        || task.tileKey.getPixelFormat() != currentDecodeTask.tileKey.getPixelFormat())
+                {
+                    continue;
+                }
+                final RectF batchUnion = new RectF(union);
+                batchUnion.union(task.pageSliceBounds);
+                // the space between the tiles is rendered too, don't batch tiles lying far apart
+                if (getArea(batchUnion) > MAX_BATCH_AREA_OVERHEAD * (area + getArea(task.pageSliceBounds)))
+                {
+                    continue;
+                }
+                // tasks already taken by other workers can't be removed
+                if (!executorService.remove(task.future))
+                {
+                    continue;
+                }
+                batch.add(task);
+                union.set(batchUnion);
+                area += getArea(task.pageSliceBounds);
+            }
+        }
+        return batch;
+    }
+
+    private static float getArea(RectF rect)
+    {
+        return rect.width() * rect.height();
+    }
+
+    private void cacheAndFinishDecoding(DecodeTask currentDecodeTask, Bitmap bitmap, boolean store)
+    {
+        // tiles of dead tasks are still worth keeping for when the user scrolls back
+        final boolean taskDead = isTaskDead(currentDecodeTask);
+        final Bitmap cachedBitmap = tileCache.add(currentDecodeTask.tileKey, bitmap, (taskDead ? 0 : 1) + (store ? 1 : 0));
+        if (store)
+        {
+            diskTileCache.store(currentDecodeTask.tileKey, cachedBitmap);
+        }
+        if (!taskDead)
+        {
+            finishDecoding(currentDecodeTask, cachedBitmap);
+        }
+    }
+
+    private Bitmap[] renderBitmaps(DecodeBatch batch, CodecPage vuPage, int[] widths, int[] heights)
+    {
+        final Bitmap[] bitmaps = new Bitmap[widths.length];
+        final RectF[] pageSlicesBounds = new RectF[widths.length];
+        // the format the tiles were requested in, they are cached under it
+        final PixelFormat requestedFormat = batch.tasks.get(0).tileKey.getPixelFormat();
+        final PixelFormat format = requestedFormat != null ? requestedFormat : vuPage.getPreferredPixelFormat();
+        int pixels = 0;
+        for (int i = 0; i < bitmaps.length; i++)
+        {
+            bitmaps[i] = bitmapPool.obtain(widths[i], heights[i], format.getConfig());
+            pageSlicesBounds[i] = batch.tasks.get(i).pageSliceBounds;
+            pixels += widths[i] * heights[i];
+        }
+        final long renderStart = System.currentTimeMillis();
+        final boolean rendered = bitmaps.length == 1
+                ? vuPage.renderBitmap(bitmaps[0], pageSlicesBounds[0], format, batch.abortToken)
+                : vuPage.renderBitmaps(bitmaps, pageSlicesBounds, format, batch.abortToken);
+        final long renderTime = System.currentTimeMillis() - renderStart;
+        if (!rendered)
+        {
+            countAbortedRender(pixels, renderTime);
+            for (Bitmap bitmap : bitmaps)
+            {
+                bitmapPool.offer(bitmap);
+            }
+            return null;
+        }
+        countFinishedRender(pixels, renderTime);
+        return bitmaps;
+    }
+
+    public void releaseBitmap(Bitmap bitmap)
+    {
+        tileCache.release(bitmap);
+    }
+
+    private boolean isPreviewWorthwhile(int pixels)
+    {
+        synchronized (renderStatistics)
+        {
+            if (renderStatistics.renderedPixels == 0)
+            {
+                return true;
+            }
+            return renderStatistics.renderTime * pixels / renderStatistics.renderedPixels > PREVIEW_RENDER_TIME_THRESHOLD;
+        }
+    }
+
+    private void countFinishedRender(int pixels, long renderTime)
+    {
+        synchronized (renderStatistics)
+        {
+            renderStatistics.renderedPixels += pixels;
+            renderStatistics.renderTime += renderTime;
+        }
+    }
+
+    private void countAbortedRender(int pixels, long renderTime)
+    {
+        synchronized (renderStatistics)
+        {
+            renderStatistics.abortedRenders++;
+            if (renderStatistics.renderedPixels > 0)
+            {
+                final long expectedRenderTime = renderStatistics.renderTime * pixels / renderStatistics.renderedPixels;
+                renderStatistics.savedRenderTime += Math.max(expectedRenderTime - renderTime, 0);
+            }
+            Log.d(DECODE_SERVICE, "Render aborted after " + renderTime + " ms, " + renderStatistics.abortedRenders + " renders aborted, about " + renderStatistics.savedRenderTime + " ms of render time saved");
+        }
     }
 
     private int getScaledHeight(DecodeTask currentDecodeTask, CodecPage vuPage, float scale)
@@ -151,40 +596,32 @@ public class DecodeServiceBase implements DecodeService
     private void finishDecoding(DecodeTask currentDecodeTask, Bitmap bitmap)
     {
         updateImage(currentDecodeTask, bitmap);
-        stopDecoding(currentDecodeTask.pageNumber);
-    }
-
-    private void preloadNextPage(int pageNumber) throws IOException
-    {
-        final int nextPage = pageNumber + 1;
-        if (nextPage >= getPageCount())
+        synchronized (decodingTasks)
         {
-            return;
+            if (decodingTasks.get(currentDecodeTask.decodeKey) == currentDecodeTask)
+            {
+                decodingTasks.remove(currentDecodeTask.decodeKey);
+            }
         }
-        getPage(nextPage);
     }
 
-    private CodecPage getPage(int pageIndex)
+    /**
+     * Returns the page pinned against eviction, every call must be paired with {@link #releasePage(CodecPage)}.
+     */
+    private CodecPage acquirePage(int pageIndex)
     {
-        if (!pages.containsKey(pageIndex) || pages.get(pageIndex).get() == null)
+        final CodecPage page = pageCache.acquire(pageIndex);
+        if (page != null)
         {
-            pages.put(pageIndex, new SoftReference<CodecPage>(document.getPage(pageIndex)));
-            pageEvictionQueue.remove(pageIndex);
-            pageEvictionQueue.offer(pageIndex);
-            if (pageEvictionQueue.size() > PAGE_POOL_SIZE) {
-                Integer evictedPageIndex = pageEvictionQueue.poll();
-                CodecPage evictedPage = pages.remove(evictedPageIndex).get();
-                if (evictedPage != null) {
-                    evictedPage.recycle();
-                }
-            }
+            return page;
         }
-        return pages.get(pageIndex).get();
+        // parsing a page may be slow, don't hold other workers while doing it
+        return pageCache.add(pageIndex, document.getPage(pageIndex), 1);
     }
 
-    private void waitForDecode(CodecPage vuPage)
+    private void releasePage(CodecPage page)
     {
-        vuPage.waitForDecode();
+        pageCache.release(page);
     }
 
     private int getTargetWidth()
@@ -194,36 +631,41 @@ public class DecodeServiceBase implements DecodeService
 
     public int getEffectivePagesWidth()
     {
-        final CodecPage page = getPage(0);
-        return getScaledWidth(page, calculateScale(page));
+        return getTargetWidth();
     }
 
     public int getEffectivePagesHeight()
     {
-        final CodecPage page = getPage(0);
-        return getScaledHeight(page, calculateScale(page));
-    }
-
-    public int getPageWidth(int pageIndex)
-    {
-        return getPage(pageIndex).getWidth();
+        final int[] size = getFirstPageSize();
+        return (int) (1.0f * getTargetWidth() / size[0] * size[1]);
     }
 
-    public int getPageHeight(int pageIndex)
+    /**
+     * Reads the size the way page sizes are scanned, without parsing or decoding the page.
+     * A page whose size isn't known yet is taken as square until the scan gets to it.
+     */
+    private int[] getFirstPageSize()
     {
-        return getPage(pageIndex).getHeight();
+        final int[] size = new int[2];
+        document.getPageSizes(0, size);
+        if (size[0] <= 0 || size[1] <= 0)
+        {
+            size[0] = 1;
+            size[1] = 1;
+        }
+        return size;
     }
 
     private void updateImage(final DecodeTask currentDecodeTask, Bitmap bitmap)
     {
-        currentDecodeTask.decodeCallback.decodeComplete(bitmap);
+        currentDecodeTask.decodeCallback.decodeComplete(bitmap, true);
     }
 
     private boolean isTaskDead(DecodeTask currentDecodeTask)
     {
-        synchronized (decodingFutures)
+        synchronized (decodingTasks)
         {
-            return !decodingFutures.containsKey(currentDecodeTask.decodeKey);
+            return decodingTasks.get(currentDecodeTask.decodeKey) != currentDecodeTask;
         }
     }
 
@@ -239,36 +681,118 @@ public class DecodeServiceBase implements DecodeService
         private final float zoom;
         private final DecodeCallback decodeCallback;
         private final RectF pageSliceBounds;
-
-        private DecodeTask(int pageNumber, DecodeCallback decodeCallback, float zoom, Object decodeKey, RectF pageSliceBounds)
+        private final TileCache.TileKey tileKey;
+        private final DecodePriority decodePriority;
+        private final AbortToken abortToken = new AbortToken();
+        private volatile DecodeFuture future;
+        private volatile DecodeBatch batch;
+
+        private DecodeTask(int pageNumber, DecodeCallback decodeCallback, float zoom, Object decodeKey, RectF pageSliceBounds, TileCache.TileKey tileKey,
+                           DecodePriority decodePriority)
         {
             this.pageNumber = pageNumber;
             this.decodeCallback = decodeCallback;
             this.zoom = zoom;
             this.decodeKey = decodeKey;
             this.pageSliceBounds = pageSliceBounds;
+            this.tileKey = tileKey;
+            this.decodePriority = decodePriority;
+        }
+    }
+
+    /**
+     * Tasks rendered together, the render is aborted once none of them is wanted anymore.
+     */
+    private static class DecodeBatch
+    {
+        private final ArrayList<DecodeTask> tasks;
+        private final AbortToken abortToken = new AbortToken();
+
+        private DecodeBatch(ArrayList<DecodeTask> tasks)
+        {
+            this.tasks = tasks;
+            for (DecodeTask task : tasks)
+            {
+                task.batch = this;
+            }
+            // some task may have been aborted before it knew its batch
+            taskAborted();
+        }
+
+        private void taskAborted()
+        {
+            for (DecodeTask task : tasks)
+            {
+                if (!task.abortToken.isAborted())
+                {
+                    return;
+                }
+            }
+            abortToken.abort();
+        }
+    }
+
+    private static class RenderStatistics
+    {
+        private long renderedPixels;
+        private long renderTime;
+        private int abortedRenders;
+        private long savedRenderTime;
+    }
+
+    private static class DecodeFuture extends FutureTask<Object> implements Comparable<DecodeFuture>
+    {
+        private static final AtomicLong sequencer = new AtomicLong();
+        private final long sequenceNumber = sequencer.getAndIncrement();
+        private final DecodePriority decodePriority;
+        private volatile float priority;
+        private volatile float updatedPriority;
+
+        private DecodeFuture(DecodeTask decodeTask, DecodePriority decodePriority, float priority, Runnable runnable)
+        {
+            super(runnable, decodeTask);
+            this.decodePriority = decodePriority;
+            this.priority = priority;
+        }
+
+        public int compareTo(DecodeFuture another)
+        {
+            if (priority != another.priority)
+            {
+                return priority < another.priority ? -1 : 1;
+            }
+            return sequenceNumber < another.sequenceNumber ? -1 : (sequenceNumber == another.sequenceNumber ? 0 : 1);
         }
     }
 
     public void recycle() {
-        synchronized (decodingFutures) {
+        synchronized (decodingTasks) {
             isRecycled = true;
         }
-        for (Object key : decodingFutures.keySet()) {
+        for (Object key : decodingTasks.keySet()) {
             stopDecoding(key);
         }
-        executorService.submit(new Runnable() {
+        executorService.shutdown();
+        // native resources may only go away once every worker is done with them
+        new Thread(new Runnable() {
             public void run() {
-                for (SoftReference<CodecPage> codecPageSoftReference : pages.values()) {
-                    CodecPage page = codecPageSoftReference.get();
-                    if (page != null) {
-                        page.recycle();
+                try {
+                    while (!executorService.awaitTermination(1, TimeUnit.SECONDS)) {
+                        Log.d(DECODE_SERVICE, "Waiting for decode workers to finish");
                     }
+                } catch (InterruptedException e) {
+                    Log.e(DECODE_SERVICE, "Interrupted while waiting for decode workers", e);
+                }
+                pageCache.clear();
+                if (diskTileCache != null) {
+                    diskTileCache.close();
                 }
+                Log.i(DECODE_SERVICE, "Tile cache hits: " + tileCache.getHitCount() + ", misses: " + tileCache.getMissCount());
+                tileCache.clear();
+                bitmapPool.clear();
                 document.recycle();
                 codecContext.recycle();
             }
-        });
-        executorService.shutdown();
+        }).start();
     }
 }
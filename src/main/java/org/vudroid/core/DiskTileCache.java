@@ -0,0 +1,299 @@
+package org.vudroid.core;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import org.vudroid.core.codec.PixelFormat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Keeps rendered tiles of recently opened documents as PNG files, so reopening a document doesn't render them again.
+ * Files of all documents share one size limit, least recently used files are deleted first.
+ * Ink coverage tiles are kept as deflated ALPHA_8 pixels, PNG can't hold them.
+ */
+class DiskTileCache
+{
+    private static final String TAG = "ViewDroidDiskTileCache";
+    private static final String TILE_EXTENSION = ".png";
+    private static final String ALPHA_TILE_EXTENSION = ".a8";
+    private static final String TEMP_EXTENSION = ".tmp";
+    private final File directory;
+    private final String documentFingerprint;
+    private final long maxSize;
+    private final TileCache tileCache;
+    private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+    private final LinkedHashMap<String, Long> fileSizes = new LinkedHashMap<String, Long>(64, 0.75f, true);
+    private long size;
+
+    /**
+     * @param tileCache the cache stored bitmaps are released back to once they are written
+     */
+    DiskTileCache(File directory, String documentFingerprint, long maxSize, TileCache tileCache)
+    {
+        this.directory = directory;
+        this.documentFingerprint = documentFingerprint;
+        this.maxSize = maxSize;
+        this.tileCache = tileCache;
+        writeExecutor.execute(new Runnable()
+        {
+            public void run()
+            {
+                Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+                loadIndex();
+            }
+        });
+    }
+
+    /**
+     * Loads the tile in the format of its key, PNG tiles of the page's preferred format come as RGB_565.
+     */
+    Bitmap load(TileCache.TileKey key)
+    {
+        final PixelFormat pixelFormat = key.getPixelFormat();
+        boolean alpha = pixelFormat == PixelFormat.ALPHA_8;
+        File file = getFile(key, alpha ? Bitmap.Config.ALPHA_8 : Bitmap.Config.RGB_565);
+        if (!file.exists())
+        {
+            // the page's preferred format may be ink coverage as well
+            if (pixelFormat != null)
+            {
+                return null;
+            }
+            alpha = true;
+            file = getFile(key, Bitmap.Config.ALPHA_8);
+            if (!file.exists())
+            {
+                return null;
+            }
+        }
+        final Bitmap bitmap;
+        if (alpha)
+        {
+            bitmap = readAlphaTile(file);
+        }
+        else
+        {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = pixelFormat == PixelFormat.ARGB_8888 ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+            options.inDither = pixelFormat == PixelFormat.RGB_565_DITHERED;
+            bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        }
+        if (bitmap == null)
+        {
+            Log.w(TAG, "Dropping unreadable tile " + file);
+            file.delete();
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        synchronized (fileSizes)
+        {
+            fileSizes.get(file.getName());
+        }
+        return bitmap;
+    }
+
+    /**
+     * Writes the tile in background, the bitmap must be pinned in the tile cache for this call.
+     */
+    void store(final TileCache.TileKey key, final Bitmap bitmap)
+    {
+        writeExecutor.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    write(getFile(key, bitmap.getConfig()), bitmap);
+                }
+                finally
+                {
+                    tileCache.release(bitmap);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops accepting tiles, the ones already passed to {@link #store(TileCache.TileKey, Bitmap)} are still written.
+     */
+    void close()
+    {
+        writeExecutor.shutdown();
+    }
+
+    private File getFile(TileCache.TileKey key, Bitmap.Config config)
+    {
+        return new File(directory, documentFingerprint + "-" + key.getName() + (config == Bitmap.Config.ALPHA_8 ? ALPHA_TILE_EXTENSION : TILE_EXTENSION));
+    }
+
+    private static Bitmap readAlphaTile(File file)
+    {
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new InflaterInputStream(new BufferedInputStream(new FileInputStream(file))));
+            final int width = in.readInt();
+            final int height = in.readInt();
+            final byte[] pixels = new byte[width * height];
+            in.readFully(pixels);
+            final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+            return bitmap;
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Can't read tile " + file, e);
+            return null;
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException e)
+                {
+                    Log.e(TAG, "Can't close " + file, e);
+                }
+            }
+        }
+    }
+
+    private static void writeAlphaTile(OutputStream out, Bitmap bitmap) throws IOException
+    {
+        final DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(bitmap.getWidth());
+        data.writeInt(bitmap.getHeight());
+        final ByteBuffer pixels = ByteBuffer.allocate(bitmap.getWidth() * bitmap.getHeight());
+        bitmap.copyPixelsToBuffer(pixels);
+        data.write(pixels.array());
+        data.flush();
+    }
+
+    private void write(File file, Bitmap bitmap)
+    {
+        if (file.exists())
+        {
+            return;
+        }
+        final File tempFile = new File(directory, file.getName() + TEMP_EXTENSION);
+        OutputStream out = null;
+        try
+        {
+            out = new BufferedOutputStream(new FileOutputStream(tempFile));
+            if (bitmap.getConfig() == Bitmap.Config.ALPHA_8)
+            {
+                out = new DeflaterOutputStream(out);
+                writeAlphaTile(out, bitmap);
+            }
+            else if (!bitmap.compress(Bitmap.CompressFormat.PNG, 100, out))
+            {
+                throw new IOException("Can't compress tile");
+            }
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(file))
+            {
+                throw new IOException("Can't rename " + tempFile + " to " + file);
+            }
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Can't store tile " + file, e);
+            tempFile.delete();
+            return;
+        }
+        finally
+        {
+            if (out != null)
+            {
+                try
+                {
+                    out.close();
+                }
+                catch (IOException e)
+                {
+                    Log.e(TAG, "Can't close " + tempFile, e);
+                }
+            }
+        }
+        synchronized (fileSizes)
+        {
+            final Long replaced = fileSizes.put(file.getName(), file.length());
+            size += file.length() - (replaced != null ? replaced : 0);
+            trimToSize();
+        }
+    }
+
+    private void loadIndex()
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            Log.e(TAG, "Can't create tile cache directory " + directory);
+            return;
+        }
+        final File[] files = directory.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>()
+        {
+            public int compare(File file, File another)
+            {
+                return file.lastModified() < another.lastModified() ? -1 : (file.lastModified() == another.lastModified() ? 0 : 1);
+            }
+        });
+        synchronized (fileSizes)
+        {
+            for (File file : files)
+            {
+                if (!file.getName().endsWith(TILE_EXTENSION) && !file.getName().endsWith(ALPHA_TILE_EXTENSION))
+                {
+                    // left over from an interrupted write
+                    file.delete();
+                    continue;
+                }
+                if (!fileSizes.containsKey(file.getName()))
+                {
+                    fileSizes.put(file.getName(), file.length());
+                    size += file.length();
+                }
+            }
+            trimToSize();
+        }
+    }
+
+    private void trimToSize()
+    {
+        final Iterator<Map.Entry<String, Long>> iterator = fileSizes.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext())
+        {
+            final Map.Entry<String, Long> entry = iterator.next();
+            new File(directory, entry.getKey()).delete();
+            size -= entry.getValue();
+            iterator.remove();
+        }
+    }
+}
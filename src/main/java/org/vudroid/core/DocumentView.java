@@ -14,14 +14,28 @@ import org.vudroid.core.models.ZoomModel;
 import org.vudroid.core.multitouch.MultiTouchZoom;
 import org.vudroid.core.multitouch.MultiTouchZoomImpl;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class DocumentView extends View implements ZoomListener {
     final ZoomModel zoomModel;
     private final CurrentPageModel currentPageModel;
     DecodeService decodeService;
-    private final HashMap<Integer, Page> pages = new HashMap<Integer, Page>();
+    /**
+     * Pages near the view, others are null. Sizes of all pages are kept in the arrays below.
+     */
+    private Page[] pages = new Page[0];
+    private float[] aspectRatios = new float[0];
+    /**
+     * Tops of the pages followed by the bottom of the last one, ascending, so pages in view are found by binary search.
+     */
+    private float[] pageTops = new float[0];
+    private float pagesWidth;
+    /**
+     * Zoom the layout is made for, while a zoom is previewed it lags behind the model's one until the zoom is committed.
+     */
+    private float layoutZoom = 1;
+    private int activeFirstPage;
+    private int activeLastPage = -1;
     private boolean isInitialized = false;
     private int pageToGoTo;
     private float lastX;
@@ -31,9 +45,14 @@ public class DocumentView extends View implements ZoomListener {
     DecodingProgressModel progressModel;
     private RectF viewRect;
     private boolean inZoom;
+    private final RectF placeholderBounds = new RectF();
     private long lastDownEventTime;
     private static final int DOUBLE_TAP_TIME = 500;
     private MultiTouchZoom multiTouchZoom;
+    private static final float PREFETCH_LOOKAHEAD = 0.5f;
+    private RectF prefetchRect;
+    private float dragVelocityX;
+    private float dragVelocityY;
 
     public DocumentView(Context context, final ZoomModel zoomModel, DecodingProgressModel progressModel, CurrentPageModel currentPageModel) {
         super(context);
@@ -65,17 +84,79 @@ public class DocumentView extends View implements ZoomListener {
         }
         final int width = decodeService.getEffectivePagesWidth();
         final int height = decodeService.getEffectivePagesHeight();
-        for (int i = 0; i < decodeService.getPageCount(); i++) {
-            pages.put(i, new Page(this, i));
-            pages.get(i).setAspectRatio(width, height);
-        }
+        final int pageCount = decodeService.getPageCount();
+        pages = new Page[pageCount];
+        aspectRatios = new float[pageCount];
+        Arrays.fill(aspectRatios, width * 1.0f / height);
+        layoutZoom = zoomModel.getZoom();
         isInitialized = true;
         invalidatePageSizes();
         goToPageImpl(pageToGoTo);
+        decodeService.scanPageSizes(new DecodeService.PageSizesListener() {
+            public void pageSizesKnown(final int firstPageIndex, final int[] sizes) {
+                post(new Runnable() {
+                    public void run() {
+                        applyPageSizes(firstPageIndex, sizes);
+                    }
+                });
+            }
+        });
+    }
+
+    private void applyPageSizes(int firstPageIndex, int[] sizes) {
+        boolean changed = false;
+        for (int i = 0; i < sizes.length / 2; i++) {
+            if (sizes[2 * i] > 0 && sizes[2 * i + 1] > 0) {
+                changed |= updateAspectRatio(firstPageIndex + i, sizes[2 * i] * 1.0f / sizes[2 * i + 1]);
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        // keep the same part of the current page in view while pages above it change their heights
+        final int anchorPage = getCurrentPage();
+        final float anchorOffset = (getScrollY() - pageTops[anchorPage]) / getPageHeight(anchorPage);
+        invalidatePageSizes();
+        scrollTo(getScrollX(), Math.round(pageTops[anchorPage] + anchorOffset * getPageHeight(anchorPage)));
+        updatePageVisibility();
+        invalidate();
+    }
+
+    float getAspectRatio(int pageIndex) {
+        return aspectRatios[pageIndex];
+    }
+
+    /**
+     * Changes aspect ratio leaving layout to the caller.
+     * @return true if the ratio has changed
+     */
+    private boolean updateAspectRatio(int pageIndex, float aspectRatio) {
+        if (aspectRatios[pageIndex] == aspectRatio) {
+            return false;
+        }
+        aspectRatios[pageIndex] = aspectRatio;
+        return true;
+    }
+
+    private float getPageHeight(int pageIndex) {
+        return pageTops[pageIndex + 1] - pageTops[pageIndex];
+    }
+
+    /**
+     * @return the page, created with its bounds if it wasn't near the view before
+     */
+    private Page getPage(int pageIndex) {
+        Page page = pages[pageIndex];
+        if (page == null) {
+            page = new Page(this, pageIndex);
+            page.setBounds(0, pageTops[pageIndex], pagesWidth, pageTops[pageIndex + 1]);
+            pages[pageIndex] = page;
+        }
+        return page;
     }
 
     private void goToPageImpl(final int toPage) {
-        scrollTo(0, pages.get(toPage).getTop());
+        scrollTo(0, Math.round(pageTops[toPage]));
     }
 
     @Override
@@ -99,16 +180,104 @@ public class DocumentView extends View implements ZoomListener {
     }
 
     private void updatePageVisibility() {
-        for (Page page : pages.values()) {
-            page.updateVisibility();
+        if (inZoom) {
+            // the layout is stale while a zoom is previewed, committing the zoom updates pages anyway
+            return;
         }
+        updateActivePages(false);
+        decodeService.updateDecodePriorities();
     }
 
+    /**
+     * Lays pages out for the committed zoom keeping the centre of the view in place. Tiles of the previous zoom stay
+     * as placeholders until new ones are decoded.
+     */
     public void commitZoom() {
-        for (Page page : pages.values()) {
+        if (inZoom) {
+            final float ratio = zoomModel.getZoom() / layoutZoom;
+            layoutZoom = zoomModel.getZoom();
+            invalidatePageSizes();
+            scrollTo((int) ((getScrollX() + getWidth() / 2) * ratio - getWidth() / 2), (int) ((getScrollY() + getHeight() / 2) * ratio - getHeight() / 2));
+            inZoom = false;
+        }
+        updateActivePages(true);
+        decodeService.updateDecodePriorities();
+    }
+
+    float getLayoutZoom() {
+        return layoutZoom;
+    }
+
+    /**
+     * Updates pages in view or about to be, and the ones which were the last time, so they drop their tiles.
+     * Other pages hold no tiles and aren't even created.
+     */
+    private void updateActivePages(boolean invalidate) {
+        if (!hasPageLayout()) {
+            return;
+        }
+        final RectF viewRect = getViewRect();
+        final RectF prefetchRect = getPrefetchRect();
+        final int first = getFirstPageBelow(prefetchRect != null ? Math.min(viewRect.top, prefetchRect.top) : viewRect.top);
+        final int last = getLastPageAbove(prefetchRect != null ? Math.max(viewRect.bottom, prefetchRect.bottom) : viewRect.bottom);
+        for (int i = first; i <= last; i++) {
+            updatePage(getPage(i), invalidate);
+        }
+        for (int i = activeFirstPage; i <= activeLastPage; i++) {
+            if ((i < first || i > last) && pages[i] != null) {
+                // drops its tiles, then the page itself
+                updatePage(pages[i], invalidate);
+                pages[i] = null;
+            }
+        }
+        activeFirstPage = first;
+        activeLastPage = last;
+    }
+
+    private boolean hasPageLayout() {
+        return pageTops.length > 1;
+    }
+
+    private static void updatePage(Page page, boolean invalidate) {
+        if (invalidate) {
             page.invalidate();
+        } else {
+            page.updateVisibility();
+        }
+    }
+
+    /**
+     * @return index of the first page reaching below y, or of the last page if none does
+     */
+    private int getFirstPageBelow(float y) {
+        int low = 0;
+        int high = pages.length - 1;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (pageTops[mid + 1] > y) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
         }
-        inZoom = false;
+        return low;
+    }
+
+    /**
+     * @return index of the last page starting above y, or of the first page if none does
+     */
+    private int getLastPageAbove(float y) {
+        int low = 0;
+        int high = pages.length - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (pageTops[mid] < y) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
     }
 
     public void showDocument() {
@@ -129,21 +298,24 @@ public class DocumentView extends View implements ZoomListener {
         }
     }
 
+    /**
+     * @return the topmost page in view
+     */
     public int getCurrentPage() {
-        for (Map.Entry<Integer, Page> entry : pages.entrySet()) {
-            if (entry.getValue().isVisible()) {
-                return entry.getKey();
-            }
+        if (!hasPageLayout()) {
+            return 0;
         }
-        return 0;
+        return getFirstPageBelow(getViewRect().top);
     }
 
+    /**
+     * Only previews the zoom by scaling what's drawn, layout and decoding wait until the zoom is committed.
+     */
     public void zoomChanged(float newZoom, float oldZoom) {
-        inZoom = true;
-        stopScroller();
-        final float ratio = newZoom / oldZoom;
-        invalidatePageSizes();
-        scrollTo((int) ((getScrollX() + getWidth() / 2) * ratio - getWidth() / 2), (int) ((getScrollY() + getHeight() / 2) * ratio - getHeight() / 2));
+        if (!inZoom) {
+            inZoom = true;
+            stopScroller();
+        }
         postInvalidate();
     }
 
@@ -170,6 +342,7 @@ public class DocumentView extends View implements ZoomListener {
         switch (ev.getAction()) {
             case MotionEvent.ACTION_DOWN:
                 stopScroller();
+                setDragVelocity(0, 0);
                 setLastPosition(ev);
                 if (ev.getEventTime() - lastDownEventTime < DOUBLE_TAP_TIME) {
                     zoomModel.toggleZoomControls();
@@ -178,10 +351,13 @@ public class DocumentView extends View implements ZoomListener {
                 }
                 break;
             case MotionEvent.ACTION_MOVE:
+                velocityTracker.computeCurrentVelocity(1000);
+                setDragVelocity(-velocityTracker.getXVelocity(), -velocityTracker.getYVelocity());
                 scrollBy((int) (lastX - ev.getX()), (int) (lastY - ev.getY()));
                 setLastPosition(ev);
                 break;
             case MotionEvent.ACTION_UP:
+                setDragVelocity(0, 0);
                 velocityTracker.computeCurrentVelocity(1000);
                 scroller.fling(getScrollX(), getScrollY(), (int) -velocityTracker.getXVelocity(), (int) -velocityTracker.getYVelocity(), getLeftLimit(), getRightLimit(), getTopLimit(), getBottomLimit());
                 velocityTracker.recycle();
@@ -192,6 +368,12 @@ public class DocumentView extends View implements ZoomListener {
         return true;
     }
 
+    private void setDragVelocity(float velocityX, float velocityY) {
+        dragVelocityX = velocityX;
+        dragVelocityY = velocityY;
+        prefetchRect = null;
+    }
+
     private void setLastPosition(MotionEvent ev) {
         lastX = ev.getX();
         lastY = ev.getY();
@@ -225,7 +407,7 @@ public class DocumentView extends View implements ZoomListener {
 
     private void lineByLineMoveTo(int direction) {
         if (direction == 1 ? getScrollX() == getRightLimit() : getScrollX() == getLeftLimit()) {
-            scroller.startScroll(getScrollX(), getScrollY(), direction * (getLeftLimit() - getRightLimit()), (int) (direction * pages.get(getCurrentPage()).bounds.height() / 50));
+            scroller.startScroll(getScrollX(), getScrollY(), direction * (getLeftLimit() - getRightLimit()), (int) (direction * getPageHeight(getCurrentPage()) / 50));
         } else {
             scroller.startScroll(getScrollX(), getScrollY(), direction * getWidth() / 2, 0);
         }
@@ -241,17 +423,21 @@ public class DocumentView extends View implements ZoomListener {
     }
 
     private int getBottomLimit() {
-        return (int) pages.get(pages.size() - 1).bounds.bottom - getHeight();
+        if (!hasPageLayout()) {
+            return 0;
+        }
+        return (int) pageTops[pageTops.length - 1] - getHeight();
     }
 
     private int getRightLimit() {
-        return (int) (getWidth() * zoomModel.getZoom()) - getWidth();
+        return (int) (getWidth() * layoutZoom) - getWidth();
     }
 
     @Override
     public void scrollTo(int x, int y) {
         super.scrollTo(Math.min(Math.max(x, getLeftLimit()), getRightLimit()), Math.min(Math.max(y, getTopLimit()), getBottomLimit()));
         viewRect = null;
+        prefetchRect = null;
     }
 
     RectF getViewRect() {
@@ -261,6 +447,31 @@ public class DocumentView extends View implements ZoomListener {
         return viewRect;
     }
 
+    /**
+     * @return area which is about to be scrolled into view or null if the document isn't moving
+     */
+    RectF getPrefetchRect() {
+        if (prefetchRect == null) {
+            float dx;
+            float dy;
+            if (!scroller.isFinished()) {
+                dx = scroller.getFinalX() - getScrollX();
+                dy = scroller.getFinalY() - getScrollY();
+            } else {
+                dx = dragVelocityX * PREFETCH_LOOKAHEAD;
+                dy = dragVelocityY * PREFETCH_LOOKAHEAD;
+            }
+            dx = Math.min(Math.max(dx, -getWidth()), getWidth());
+            dy = Math.min(Math.max(dy, -getHeight()), getHeight());
+            if (dx == 0 && dy == 0) {
+                return null;
+            }
+            prefetchRect = new RectF(getViewRect());
+            prefetchRect.offset(dx, dy);
+        }
+        return prefetchRect;
+    }
+
     @Override
     public void computeScroll() {
         if (scroller.computeScrollOffset()) {
@@ -271,14 +482,54 @@ public class DocumentView extends View implements ZoomListener {
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        for (Page page : pages.values()) {
-            page.draw(canvas);
+        if (!hasPageLayout()) {
+            return;
+        }
+        if (inZoom) {
+            drawZoomPreview(canvas);
+            return;
+        }
+        final RectF viewRect = getViewRect();
+        final int last = getLastPageAbove(viewRect.bottom);
+        for (int i = getFirstPageBelow(viewRect.top); i <= last; i++) {
+            drawPage(canvas, i);
         }
     }
 
+    /**
+     * Pages are only created by {@link #updateActivePages(boolean)}, the ones it hasn't got to yet get placeholders.
+     */
+    private void drawPage(Canvas canvas, int pageIndex) {
+        if (pages[pageIndex] != null) {
+            pages[pageIndex].draw(canvas);
+        } else {
+            placeholderBounds.set(0, pageTops[pageIndex], pagesWidth, pageTops[pageIndex + 1]);
+            Page.drawPlaceholder(canvas, pageIndex, placeholderBounds);
+        }
+    }
+
+    /**
+     * Draws pages of the current layout scaled around the centre of the view, only tiles decoded already are shown.
+     * Pages zoomed out into view which aren't created get placeholders.
+     */
+    private void drawZoomPreview(Canvas canvas) {
+        final float scale = zoomModel.getZoom() / layoutZoom;
+        final float centerX = getScrollX() + getWidth() / 2f;
+        final float centerY = getScrollY() + getHeight() / 2f;
+        final float halfHeight = getHeight() / 2f / scale;
+        final int last = getLastPageAbove(centerY + halfHeight);
+        canvas.save();
+        canvas.scale(scale, scale, centerX, centerY);
+        for (int i = getFirstPageBelow(centerY - halfHeight); i <= last; i++) {
+            drawPage(canvas, i);
+        }
+        canvas.restore();
+    }
+
     @Override
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
         super.onLayout(changed, left, top, right, bottom);
+        // the layout keeps its zoom, a previewed one is applied by committing it
         float scrollScaleRatio = getScrollScaleRatio();
         invalidatePageSizes();
         invalidateScroll(scrollScaleRatio);
@@ -291,12 +542,21 @@ public class DocumentView extends View implements ZoomListener {
         }
         float heightAccum = 0;
         int width = getWidth();
-        float zoom = zoomModel.getZoom();
-        for (int i = 0; i < pages.size(); i++) {
-            Page page = pages.get(i);
-            float pageHeight = page.getPageHeight(width, zoom);
-            page.setBounds(new RectF(0, heightAccum, width * zoom, heightAccum + pageHeight));
-            heightAccum += pageHeight;
+        float zoom = layoutZoom;
+        if (pageTops.length != aspectRatios.length + 1) {
+            pageTops = new float[aspectRatios.length + 1];
+        }
+        for (int i = 0; i < aspectRatios.length; i++) {
+            pageTops[i] = heightAccum;
+            heightAccum += width / aspectRatios[i] * zoom;
+        }
+        pageTops[aspectRatios.length] = heightAccum;
+        pagesWidth = width * zoom;
+        // only active pages exist
+        for (int i = activeFirstPage; i <= activeLastPage; i++) {
+            if (pages[i] != null) {
+                pages[i].setBounds(0, pageTops[i], pagesWidth, pageTops[i + 1]);
+            }
         }
     }
 
@@ -305,20 +565,17 @@ public class DocumentView extends View implements ZoomListener {
             return;
         }
         stopScroller();
-        final Page page = pages.get(0);
-        if (page == null || page.bounds == null) {
+        if (!hasPageLayout()) {
             return;
         }
         scrollTo((int) (getScrollX() * ratio), (int) (getScrollY() * ratio));
     }
 
     private float getScrollScaleRatio() {
-        final Page page = pages.get(0);
-        if (page == null || page.bounds == null) {
+        if (!hasPageLayout()) {
             return 0;
         }
-        final float v = zoomModel.getZoom();
-        return getWidth() * v / page.bounds.width();
+        return getWidth() * layoutZoom / pagesWidth;
     }
 
     private void stopScroller() {
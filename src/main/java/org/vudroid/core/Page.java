@@ -6,14 +6,18 @@ import android.graphics.Paint;
 import android.graphics.RectF;
 import android.text.TextPaint;
 
+/**
+ * Tiles of a page near the view. Pages are created when they come near the view and dropped once they leave,
+ * their sizes are kept by the document view.
+ */
 class Page {
+    private static final TextPaint textPaint = textPaint();
+    private static final Paint fillPaint = fillPaint();
+    private static final Paint strokePaint = strokePaint();
     final int index;
-    RectF bounds;
+    final RectF bounds = new RectF();
     private PageTreeNode node;
     private DocumentView documentView;
-    private final TextPaint textPaint = textPaint();
-    private final Paint fillPaint = fillPaint();
-    private final Paint strokePaint = strokePaint();
 
     Page(DocumentView documentView, int index) {
         this.documentView = documentView;
@@ -21,29 +25,38 @@ class Page {
         node = new PageTreeNode(documentView, new RectF(0, 0, 1, 1), this, 1, null);
     }
 
-    private float aspectRatio;
-
     float getPageHeight(int mainWidth, float zoom) {
         return mainWidth / getAspectRatio() * zoom;
     }
 
-    public int getTop() {
-        return Math.round(bounds.top);
+    /**
+     * Draws the page, callers pick the pages in view.
+     */
+    public void draw(Canvas canvas) {
+        drawBackground(canvas, index, bounds);
+        node.draw(canvas);
+        drawBorders(canvas, bounds);
     }
 
-    public void draw(Canvas canvas) {
-        if (!isVisible()) {
-            return;
-        }
-        canvas.drawRect(bounds, fillPaint);
+    /**
+     * Draws a page which isn't created, the way a page without decoded tiles looks.
+     */
+    static void drawPlaceholder(Canvas canvas, int index, RectF bounds) {
+        drawBackground(canvas, index, bounds);
+        drawBorders(canvas, bounds);
+    }
 
+    private static void drawBackground(Canvas canvas, int index, RectF bounds) {
+        canvas.drawRect(bounds, fillPaint);
         canvas.drawText("Page " + (index + 1), bounds.centerX(), bounds.centerY(), textPaint);
-        node.draw(canvas);
+    }
+
+    private static void drawBorders(Canvas canvas, RectF bounds) {
         canvas.drawLine(bounds.left, bounds.top, bounds.right, bounds.top, strokePaint);
         canvas.drawLine(bounds.left, bounds.bottom, bounds.right, bounds.bottom, strokePaint);
     }
 
-    private Paint strokePaint() {
+    private static Paint strokePaint() {
         final Paint strokePaint = new Paint();
         strokePaint.setColor(Color.BLACK);
         strokePaint.setStyle(Paint.Style.STROKE);
@@ -51,14 +64,14 @@ class Page {
         return strokePaint;
     }
 
-    private Paint fillPaint() {
+    private static Paint fillPaint() {
         final Paint fillPaint = new Paint();
         fillPaint.setColor(Color.GRAY);
         fillPaint.setStyle(Paint.Style.FILL);
         return fillPaint;
     }
 
-    private TextPaint textPaint() {
+    private static TextPaint textPaint() {
         final TextPaint paint = new TextPaint();
         paint.setColor(Color.BLACK);
         paint.setAntiAlias(true);
@@ -68,26 +81,11 @@ class Page {
     }
 
     public float getAspectRatio() {
-        return aspectRatio;
-    }
-
-    public void setAspectRatio(float aspectRatio) {
-        if (this.aspectRatio != aspectRatio) {
-            this.aspectRatio = aspectRatio;
-            documentView.invalidatePageSizes();
-        }
-    }
-
-    public boolean isVisible() {
-        return RectF.intersects(documentView.getViewRect(), bounds);
-    }
-
-    public void setAspectRatio(int width, int height) {
-        setAspectRatio(width * 1.0f / height);
+        return documentView.getAspectRatio(index);
     }
 
-    void setBounds(RectF pageBounds) {
-        bounds = pageBounds;
+    void setBounds(float left, float top, float right, float bottom) {
+        bounds.set(left, top, right, bottom);
         node.invalidateNodeBounds();
     }
 
@@ -2,28 +2,44 @@ package org.vudroid.core;
 
 import android.graphics.*;
 
-import java.lang.ref.SoftReference;
-
-class PageTreeNode {
+class PageTreeNode implements DecodeService.DecodePriority {
     private static final int SLICE_SIZE = 65535;
+    private static final float INVISIBLE_PRIORITY = 1000;
+    private static final float DEPTH_PRIORITY = 1;
+    /**
+     * Distance in view diagonals farther tiles rank the same at, kept within the fraction of the priority.
+     */
+    private static final float MAX_DISTANCE = 10;
+    private static final float MAX_DISTANCE_PRIORITY = 0.99f;
     private Bitmap bitmap;
-    private SoftReference<Bitmap> bitmapWeakReference;
     private boolean decodingNow;
+    private boolean preview;
     private final RectF pageSliceBounds;
     private final Page page;
+    private final PageTreeNode parent;
     private PageTreeNode[] children;
     private final int treeNodeDepthLevel;
-    private Matrix matrix = new Matrix();
-    private final Paint bitmapPaint = new Paint();
+    // nodes are only touched by the UI thread, so they share these
+    private static final Matrix matrix = new Matrix();
+    private static final Paint paperPaint = new Paint();
+    private static final Paint inkPaint = new Paint();
+    private static final Paint bitmapPaint = new Paint();
     private DocumentView documentView;
     private boolean invalidateFlag;
     private Rect targetRect;
     private RectF targetRectF;
 
+    static {
+        paperPaint.setColor(Color.WHITE);
+        inkPaint.setColor(Color.BLACK);
+        inkPaint.setFilterBitmap(true);
+    }
+
     PageTreeNode(DocumentView documentView, RectF localPageSliceBounds, Page page, int treeNodeDepthLevel, PageTreeNode parent) {
         this.documentView = documentView;
         this.pageSliceBounds = evaluatePageSliceBounds(localPageSliceBounds, parent);
         this.page = page;
+        this.parent = parent;
         this.treeNodeDepthLevel = treeNodeDepthLevel;
     }
 
@@ -34,11 +50,9 @@ class PageTreeNode {
                 child.updateVisibility();
             }
         }
-        if (isVisible()) {
+        if (isVisibleOrPrefetched()) {
             if (!thresholdHit()) {
-                if (getBitmap() != null && !invalidateFlag) {
-                    restoreBitmapReference();
-                } else {
+                if (getBitmap() == null || invalidateFlag || preview) {
                     decodePageTreeNode();
                 }
             }
@@ -78,7 +92,14 @@ class PageTreeNode {
 
     void draw(Canvas canvas) {
         if (getBitmap() != null) {
-            canvas.drawBitmap(getBitmap(), new Rect(0, 0, getBitmap().getWidth(), getBitmap().getHeight()), getTargetRect(), bitmapPaint);
+            final Rect source = new Rect(0, 0, getBitmap().getWidth(), getBitmap().getHeight());
+            if (getBitmap().getConfig() == Bitmap.Config.ALPHA_8) {
+                // ink coverage only, it's tinted by the paint over a sheet of paper
+                canvas.drawRect(getTargetRect(), paperPaint);
+                canvas.drawBitmap(getBitmap(), source, getTargetRect(), inkPaint);
+            } else {
+                canvas.drawBitmap(getBitmap(), source, getTargetRect(), bitmapPaint);
+            }
         }
         if (children == null) {
             return;
@@ -92,6 +113,15 @@ class PageTreeNode {
         return RectF.intersects(documentView.getViewRect(), getTargetRectF());
     }
 
+    private boolean isPrefetched() {
+        final RectF prefetchRect = documentView.getPrefetchRect();
+        return prefetchRect != null && RectF.intersects(prefetchRect, getTargetRectF());
+    }
+
+    private boolean isVisibleOrPrefetched() {
+        return isVisible() || isPrefetched();
+    }
+
     private RectF getTargetRectF() {
         if (targetRectF == null) {
             targetRectF = new RectF(getTargetRect());
@@ -100,7 +130,7 @@ class PageTreeNode {
     }
 
     private void invalidateChildren() {
-        if (thresholdHit() && children == null && isVisible()) {
+        if (thresholdHit() && children == null && isVisibleOrPrefetched()) {
             final int newThreshold = treeNodeDepthLevel * 2;
             children = new PageTreeNode[]
                     {
@@ -110,24 +140,20 @@ class PageTreeNode {
                             new PageTreeNode(documentView, new RectF(0.5f, 0.5f, 1.0f, 1.0f), page, newThreshold, this)
                     };
         }
-        if (!thresholdHit() && getBitmap() != null || !isVisible()) {
+        if (!thresholdHit() && getBitmap() != null || !isVisibleOrPrefetched()) {
             recycleChildren();
         }
     }
 
     private boolean thresholdHit() {
-        float zoom = documentView.zoomModel.getZoom();
+        float zoom = documentView.getLayoutZoom();
         int mainWidth = documentView.getWidth();
         float height = page.getPageHeight(mainWidth, zoom);
         return (mainWidth * zoom * height) / (treeNodeDepthLevel * treeNodeDepthLevel) > SLICE_SIZE;
     }
 
     public Bitmap getBitmap() {
-        return bitmapWeakReference != null ? bitmapWeakReference.get() : null;
-    }
-
-    private void restoreBitmapReference() {
-        setBitmap(getBitmap());
+        return bitmap;
     }
 
     private void decodePageTreeNode() {
@@ -136,18 +162,60 @@ class PageTreeNode {
         }
         setDecodingNow(true);
         documentView.decodeService.decodePage(this, page.index, new DecodeService.DecodeCallback() {
-            public void decodeComplete(final Bitmap bitmap) {
+            public void decodeComplete(final Bitmap bitmap, final boolean isFinal) {
                 documentView.post(new Runnable() {
                     public void run() {
+                        if (!isFinal) {
+                            showPreview(bitmap);
+                            return;
+                        }
+                        if (!isDecodingNow()) {
+                            // stopped meanwhile, the node may not even be part of the document view anymore
+                            documentView.decodeService.releaseBitmap(bitmap);
+                            return;
+                        }
                         setBitmap(bitmap);
                         invalidateFlag = false;
                         setDecodingNow(false);
-                        page.setAspectRatio(documentView.decodeService.getPageWidth(page.index), documentView.decodeService.getPageHeight(page.index));
                         invalidateChildren();
                     }
                 });
             }
-        }, documentView.zoomModel.getZoom(), pageSliceBounds);
+        }, documentView.getLayoutZoom(), pageSliceBounds, this);
+    }
+
+    private void showPreview(Bitmap previewBitmap) {
+        // a preview is only better than nothing, never cover what is already there
+        if (!isDecodingNow() || getBitmap() != null || hasParentBitmap()) {
+            documentView.decodeService.releaseBitmap(previewBitmap);
+            return;
+        }
+        setBitmap(previewBitmap);
+        preview = true;
+    }
+
+    private boolean hasParentBitmap() {
+        for (PageTreeNode node = parent; node != null; node = node.parent) {
+            if (node.getBitmap() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public float getDecodePriority() {
+        final RectF viewRect = documentView.getViewRect();
+        final RectF targetRectF = getTargetRectF();
+        final float distance = (float) Math.sqrt(Math.pow(targetRectF.centerX() - viewRect.centerX(), 2) + Math.pow(targetRectF.centerY() - viewRect.centerY(), 2));
+        final float viewDiagonal = (float) Math.sqrt(Math.pow(viewRect.width(), 2) + Math.pow(viewRect.height(), 2));
+        // visible before prefetched, coarse before fine, centre before edges
+        return (isVisible() ? 0 : (isPrefetched() ? INVISIBLE_PRIORITY : 2 * INVISIBLE_PRIORITY))
+                + getDepth() * DEPTH_PRIORITY
+                + Math.min(distance / Math.max(viewDiagonal, 1) / MAX_DISTANCE, MAX_DISTANCE_PRIORITY);
+    }
+
+    private int getDepth() {
+        return Integer.numberOfTrailingZeros(treeNodeDepthLevel);
     }
 
     private RectF evaluatePageSliceBounds(RectF localPageSliceBounds, PageTreeNode parent) {
@@ -164,18 +232,24 @@ class PageTreeNode {
 
     private void setBitmap(Bitmap bitmap) {
         if (bitmap != null && bitmap.getWidth() == -1 && bitmap.getHeight() == -1) {
+            documentView.decodeService.releaseBitmap(bitmap);
             return;
         }
-        if (this.bitmap != bitmap) {
+        if (this.bitmap == bitmap) {
             if (bitmap != null) {
-                if (this.bitmap != null) {
-                    this.bitmap.recycle();
-                }
-                bitmapWeakReference = new SoftReference<Bitmap>(bitmap);
-                documentView.postInvalidate();
+                // the same cached tile was delivered again
+                documentView.decodeService.releaseBitmap(bitmap);
             }
-            this.bitmap = bitmap;
+            return;
+        }
+        if (this.bitmap != null) {
+            documentView.decodeService.releaseBitmap(this.bitmap);
+        }
+        if (bitmap != null) {
+            documentView.postInvalidate();
         }
+        this.bitmap = bitmap;
+        preview = false;
     }
 
     private boolean isDecodingNow() {
@@ -218,7 +292,7 @@ class PageTreeNode {
             return false;
         }
         for (PageTreeNode child : children) {
-            if (child.getBitmap() == null) {
+            if (child.getBitmap() == null || child.preview) {
                 return false;
             }
         }
@@ -264,7 +338,7 @@ class PageTreeNode {
     }
 
     private boolean isVisibleAndNotHiddenByChildren() {
-        return isVisible() && !isHiddenByChildren();
+        return isVisibleOrPrefetched() && !isHiddenByChildren();
     }
 
 }
@@ -0,0 +1,189 @@
+package org.vudroid.core;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps values within a size budget, least recently used values are evicted first and recycled through {@link #recycle(Object)}.
+ * Values handed out by {@link #acquire(Object)} or {@link #add(Object, Object, int)} are pinned: they are never recycled
+ * before every owner gives them back with {@link #release(Object)}.
+ */
+abstract class RecyclingLruCache<K, V>
+{
+    private final long maxSize;
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(32, 0.75f, true);
+    private final IdentityHashMap<V, Entry<V>> entriesByValue = new IdentityHashMap<V, Entry<V>>();
+    private long size;
+    private int hitCount;
+    private int missCount;
+
+    RecyclingLruCache(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    protected abstract long sizeOf(V value);
+
+    /**
+     * Called for evicted values once nobody uses them, never while holding the cache lock.
+     */
+    protected abstract void recycle(V value);
+
+    V acquire(K key)
+    {
+        synchronized (this)
+        {
+            final Entry<V> entry = entries.get(key);
+            if (entry == null)
+            {
+                missCount++;
+                return null;
+            }
+            hitCount++;
+            entry.usages++;
+            return entry.value;
+        }
+    }
+
+    /**
+     * Caches a new value pinned for {@code usages} owners. If some other thread has cached a value for the key meanwhile,
+     * that one is kept and pinned instead while the new one is recycled.
+     *
+     * @return the value which is cached now
+     */
+    V add(K key, V value, int usages)
+    {
+        final long valueSize = sizeOf(value);
+        final ArrayList<V> valuesToRecycle = new ArrayList<V>();
+        final V cachedValue;
+        synchronized (this)
+        {
+            final Entry<V> existing = entries.get(key);
+            if (existing != null)
+            {
+                existing.usages += usages;
+                valuesToRecycle.add(value);
+                cachedValue = existing.value;
+            }
+            else
+            {
+                final Entry<V> entry = new Entry<V>(value, valueSize);
+                entry.usages = usages;
+                entries.put(key, entry);
+                entriesByValue.put(value, entry);
+                size += entry.size;
+                trimToSize(valuesToRecycle);
+                cachedValue = value;
+            }
+        }
+        recycleAll(valuesToRecycle);
+        return cachedValue;
+    }
+
+    /**
+     * Gives back a value, values this cache doesn't know about are recycled right away.
+     */
+    void release(V value)
+    {
+        final ArrayList<V> valuesToRecycle = new ArrayList<V>();
+        synchronized (this)
+        {
+            final Entry<V> entry = entriesByValue.get(value);
+            if (entry == null)
+            {
+                valuesToRecycle.add(value);
+            }
+            else if (--entry.usages == 0)
+            {
+                if (entry.evicted)
+                {
+                    entriesByValue.remove(value);
+                    valuesToRecycle.add(value);
+                }
+                else
+                {
+                    trimToSize(valuesToRecycle);
+                }
+            }
+        }
+        recycleAll(valuesToRecycle);
+    }
+
+    /**
+     * Evicts everything, values still in use are recycled when they are released.
+     */
+    void clear()
+    {
+        final ArrayList<V> valuesToRecycle = new ArrayList<V>();
+        synchronized (this)
+        {
+            for (Entry<V> entry : entries.values())
+            {
+                evict(entry, valuesToRecycle);
+            }
+            entries.clear();
+        }
+        recycleAll(valuesToRecycle);
+    }
+
+    synchronized int getHitCount()
+    {
+        return hitCount;
+    }
+
+    synchronized int getMissCount()
+    {
+        return missCount;
+    }
+
+    private void trimToSize(ArrayList<V> valuesToRecycle)
+    {
+        final Iterator<Entry<V>> iterator = entries.values().iterator();
+        while (size > maxSize && iterator.hasNext())
+        {
+            final Entry<V> entry = iterator.next();
+            // the most recently used value stays even if it alone is over budget, it's likely to be asked for again
+            if (entry.usages > 0 || !iterator.hasNext())
+            {
+                continue;
+            }
+            iterator.remove();
+            evict(entry, valuesToRecycle);
+        }
+    }
+
+    private void evict(Entry<V> entry, ArrayList<V> valuesToRecycle)
+    {
+        size -= entry.size;
+        entry.evicted = true;
+        if (entry.usages == 0)
+        {
+            entriesByValue.remove(entry.value);
+            valuesToRecycle.add(entry.value);
+        }
+    }
+
+    private void recycleAll(ArrayList<V> values)
+    {
+        for (V value : values)
+        {
+            recycle(value);
+        }
+    }
+
+    private static class Entry<V>
+    {
+        private final V value;
+        private final long size;
+        private int usages;
+        private boolean evicted;
+
+        private Entry(V value, long size)
+        {
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
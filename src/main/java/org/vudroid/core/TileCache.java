@@ -0,0 +1,102 @@
+package org.vudroid.core;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import org.vudroid.core.codec.PixelFormat;
+
+/**
+ * Keeps decoded tiles within a byte budget, evicted tiles go to the bitmap pool.
+ */
+class TileCache extends RecyclingLruCache<TileCache.TileKey, Bitmap>
+{
+    private final BitmapPool bitmapPool;
+
+    TileCache(long maxSize, BitmapPool bitmapPool)
+    {
+        super(maxSize);
+        this.bitmapPool = bitmapPool;
+    }
+
+    @Override
+    protected long sizeOf(Bitmap bitmap)
+    {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    @Override
+    protected void recycle(Bitmap bitmap)
+    {
+        bitmapPool.offer(bitmap);
+    }
+
+    static class TileKey
+    {
+        private static final float ZOOM_STEPS_PER_OCTAVE = 16;
+        private final int pageIndex;
+        private final float left;
+        private final float top;
+        private final float right;
+        private final float bottom;
+        private final int zoomBucket;
+        private final PixelFormat pixelFormat;
+
+        /**
+         * @param pixelFormat format the tile is rendered in, null for the page's preferred one
+         */
+        TileKey(int pageIndex, RectF pageSliceBounds, float zoom, PixelFormat pixelFormat)
+        {
+            this.pageIndex = pageIndex;
+            this.left = pageSliceBounds.left;
+            this.top = pageSliceBounds.top;
+            this.right = pageSliceBounds.right;
+            this.bottom = pageSliceBounds.bottom;
+            // tiles rendered at nearly the same zoom are scaled on draw instead of rendered again
+            this.zoomBucket = Math.round((float) (Math.log(zoom) / Math.log(2)) * ZOOM_STEPS_PER_OCTAVE);
+            this.pixelFormat = pixelFormat;
+        }
+
+        PixelFormat getPixelFormat()
+        {
+            return pixelFormat;
+        }
+
+        /**
+         * @return name unique for this tile within its document
+         */
+        String getName()
+        {
+            return pageIndex + "-" + Integer.toHexString(Float.floatToIntBits(left)) + "-" + Integer.toHexString(Float.floatToIntBits(top))
+                    + "-" + Integer.toHexString(Float.floatToIntBits(right)) + "-" + Integer.toHexString(Float.floatToIntBits(bottom))
+                    + "-" + zoomBucket + "-" + (pixelFormat != null ? pixelFormat.name() : "preferred");
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+            {
+                return true;
+            }
+            if (!(o instanceof TileKey))
+            {
+                return false;
+            }
+            final TileKey tileKey = (TileKey) o;
+            return pageIndex == tileKey.pageIndex && zoomBucket == tileKey.zoomBucket && pixelFormat == tileKey.pixelFormat
+                    && left == tileKey.left && top == tileKey.top && right == tileKey.right && bottom == tileKey.bottom;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = pageIndex;
+            result = 31 * result + zoomBucket;
+            result = 31 * result + (pixelFormat != null ? pixelFormat.ordinal() + 1 : 0);
+            result = 31 * result + Float.floatToIntBits(left);
+            result = 31 * result + Float.floatToIntBits(top);
+            result = 31 * result + Float.floatToIntBits(right);
+            result = 31 * result + Float.floatToIntBits(bottom);
+            return result;
+        }
+    }
+}
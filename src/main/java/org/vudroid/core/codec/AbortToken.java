@@ -0,0 +1,27 @@
+package org.vudroid.core.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class AbortToken
+{
+    private final ByteBuffer flag = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder());
+
+    public void abort()
+    {
+        flag.putInt(0, 1);
+    }
+
+    public boolean isAborted()
+    {
+        return flag.getInt(0) != 0;
+    }
+
+    /**
+     * Direct buffer holding a single native int, polled by the native renderers while they work.
+     */
+    public ByteBuffer getFlag()
+    {
+        return flag;
+    }
+}
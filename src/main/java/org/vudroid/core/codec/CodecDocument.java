@@ -5,5 +5,11 @@ public interface CodecDocument {
 
     int getPageCount();
 
+    /**
+     * Fills {@code sizes} with width and height pairs of {@code sizes.length / 2} pages starting at {@code firstPageNumber},
+     * zeros are left for pages whose size isn't known without decoding them
+     */
+    void getPageSizes(int firstPageNumber, int[] sizes);
+
     void recycle();
 }
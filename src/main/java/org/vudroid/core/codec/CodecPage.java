@@ -5,15 +5,32 @@ import android.graphics.RectF;
 
 public interface CodecPage
 {
-    boolean isDecoding();
-
-    void waitForDecode();
-
     int getWidth();
 
     int getHeight();
 
-    Bitmap renderBitmap(int width, int height, RectF pageSliceBounds);
+    /**
+     * @return estimated bytes of native memory held by the parsed or decoded page
+     */
+    long getMemorySize();
+
+    /**
+     * @return format the page is best rendered in when the decode service isn't told otherwise
+     */
+    PixelFormat getPreferredPixelFormat();
+
+    /**
+     * Renders the slice over the whole of a mutable bitmap of the format's config.
+     * @return false if rendering was aborted through the token
+     */
+    boolean renderBitmap(Bitmap bitmap, RectF pageSliceBounds, PixelFormat pixelFormat, AbortToken abortToken);
+
+    /**
+     * Renders slices of one zoom, each over the whole of its bitmap, in one pass over the page.
+     * Meant for slices lying next to each other, the space between them is rendered as well.
+     * @return false if rendering was aborted through the token
+     */
+    boolean renderBitmaps(Bitmap[] bitmaps, RectF[] pageSlicesBounds, PixelFormat pixelFormat, AbortToken abortToken);
 
     void recycle();
 }
@@ -0,0 +1,52 @@
+package org.vudroid.core.codec;
+
+import android.graphics.Bitmap;
+
+/**
+ * Pixel format tiles are rendered in, trading memory for quality.
+ */
+public enum PixelFormat
+{
+    RGB_565(Bitmap.Config.RGB_565, false),
+    /**
+     * RGB_565 with ordered dithering, smooth gradients don't band for the same memory.
+     */
+    RGB_565_DITHERED(Bitmap.Config.RGB_565, true),
+    ARGB_8888(Bitmap.Config.ARGB_8888, false),
+    /**
+     * Grey ink coverage, drawn tinted over paper. Colour pages lose their colours.
+     */
+    ALPHA_8(Bitmap.Config.ALPHA_8, false);
+
+    private final Bitmap.Config config;
+    private final boolean dithered;
+
+    private PixelFormat(Bitmap.Config config, boolean dithered)
+    {
+        this.config = config;
+        this.dithered = dithered;
+    }
+
+    public Bitmap.Config getConfig()
+    {
+        return config;
+    }
+
+    public boolean isDithered()
+    {
+        return dithered;
+    }
+
+    public int getBytesPerPixel()
+    {
+        switch (config)
+        {
+            case ALPHA_8:
+                return 1;
+            case ARGB_8888:
+                return 4;
+            default:
+                return 2;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.vudroid.core.codec;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Per thread scratch memory the codecs render into before pixels are copied to a bitmap.
+ * Big bitmaps are rendered in horizontal bands, so the scratch memory stays bounded however far the page is zoomed.
+ */
+public final class RenderBuffer
+{
+    private static final int MAX_BAND_SIZE = 1 << 20;
+    private static final ThreadLocal<SoftReference<ByteBuffer>> byteBuffers = new ThreadLocal<SoftReference<ByteBuffer>>();
+    private static final ThreadLocal<SoftReference<Bitmap>> bandBitmaps = new ThreadLocal<SoftReference<Bitmap>>();
+
+    private RenderBuffer()
+    {
+    }
+
+    /**
+     * Renders a region of a page for {@link RenderBuffer#renderSlices(Bitmap[], RectF[], int, BandRenderer)}.
+     */
+    public interface BandRenderer
+    {
+        /**
+         * Renders {@code region} of the page scaled to {@code pageWidth} x {@code pageHeight} pixels into the buffer,
+         * in the pixel format of the bitmaps with rows {@code stride} bytes apart.
+         *
+         * @return false if rendering was aborted
+         */
+        boolean renderBand(float pageWidth, float pageHeight, Rect region, ByteBuffer pixels, int stride);
+    }
+
+    /**
+     * @return direct buffer of at least {@code size} bytes positioned at its start, reused by the following calls of the same thread
+     */
+    public static ByteBuffer getByteBuffer(int size)
+    {
+        final SoftReference<ByteBuffer> reference = byteBuffers.get();
+        ByteBuffer buffer = reference != null ? reference.get() : null;
+        if (buffer == null || buffer.capacity() < size)
+        {
+            buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+            byteBuffers.set(new SoftReference<ByteBuffer>(buffer));
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Renders slices of one page at one zoom, each over the whole of its bitmap. The union of the slices is rendered
+     * band by band, so slices lying next to each other cost one pass over the page instead of one each.
+     *
+     * @param scratchBytesPerPixel bytes per pixel the renderer needs in the buffer, at least those of the bitmaps
+     * @return false if rendering was aborted, the bitmaps are left incomplete then
+     */
+    public static boolean renderSlices(Bitmap[] bitmaps, RectF[] pageSlicesBounds, int scratchBytesPerPixel, BandRenderer renderer)
+    {
+        final float pageWidth = bitmaps[0].getWidth() / pageSlicesBounds[0].width();
+        final float pageHeight = bitmaps[0].getHeight() / pageSlicesBounds[0].height();
+        final Rect[] tileRects = new Rect[bitmaps.length];
+        final Rect union = new Rect();
+        for (int i = 0; i < bitmaps.length; i++)
+        {
+            final int left = Math.round(pageSlicesBounds[i].left * pageWidth);
+            final int top = Math.round(pageSlicesBounds[i].top * pageHeight);
+            tileRects[i] = new Rect(left, top, left + bitmaps[i].getWidth(), top + bitmaps[i].getHeight());
+            if (i == 0)
+            {
+                union.set(tileRects[i]);
+            }
+            else
+            {
+                union.union(tileRects[i]);
+            }
+        }
+        if (bitmaps[0].getConfig() == Bitmap.Config.ALPHA_8)
+        {
+            // bands are drawn over the bitmaps, what pooled bitmaps held before would show through translucent pixels
+            for (Bitmap bitmap : bitmaps)
+            {
+                bitmap.eraseColor(0);
+            }
+        }
+        final int stride = union.width() * (bitmaps[0].getRowBytes() / bitmaps[0].getWidth());
+        final int bandHeight = Math.min(Math.max(1, MAX_BAND_SIZE / (union.width() * scratchBytesPerPixel)), union.height());
+        final ByteBuffer pixels = getByteBuffer(union.width() * bandHeight * scratchBytesPerPixel);
+        final Rect band = new Rect();
+        for (int bandTop = union.top; bandTop < union.bottom; bandTop += bandHeight)
+        {
+            band.set(union.left, bandTop, union.right, Math.min(bandTop + bandHeight, union.bottom));
+            if (!renderer.renderBand(pageWidth, pageHeight, band, pixels, stride))
+            {
+                return false;
+            }
+            copyBand(pixels, band, bandHeight, bitmaps, tileRects);
+        }
+        return true;
+    }
+
+    private static void copyBand(ByteBuffer pixels, Rect band, int bandHeight, Bitmap[] bitmaps, Rect[] tileRects)
+    {
+        pixels.rewind();
+        if (bitmaps.length == 1 && band.top == tileRects[0].top && band.bottom == tileRects[0].bottom)
+        {
+            bitmaps[0].copyPixelsFromBuffer(pixels);
+            return;
+        }
+        // bitmaps can only take whole buffers, so the band goes through a bitmap of its own
+        final Bitmap bandBitmap = getBandBitmap(band.width(), bandHeight, bitmaps[0].getConfig());
+        bandBitmap.copyPixelsFromBuffer(pixels);
+        final Rect source = new Rect();
+        final Rect target = new Rect();
+        for (int i = 0; i < bitmaps.length; i++)
+        {
+            if (!source.setIntersect(band, tileRects[i]))
+            {
+                continue;
+            }
+            target.set(source);
+            target.offset(-tileRects[i].left, -tileRects[i].top);
+            source.offset(-band.left, -band.top);
+            new Canvas(bitmaps[i]).drawBitmap(bandBitmap, source, target, null);
+        }
+    }
+
+    private static Bitmap getBandBitmap(int width, int height, Bitmap.Config config)
+    {
+        final SoftReference<Bitmap> reference = bandBitmaps.get();
+        Bitmap band = reference != null ? reference.get() : null;
+        if (band != null && band.getWidth() == width && band.getHeight() == height && band.getConfig() == config)
+        {
+            return band;
+        }
+        if (band != null)
+        {
+            band.recycle();
+        }
+        band = Bitmap.createBitmap(width, height, config);
+        bandBitmaps.set(new SoftReference<Bitmap>(band));
+        return band;
+    }
+}
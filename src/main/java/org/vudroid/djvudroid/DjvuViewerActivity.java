@@ -10,6 +10,6 @@ public class DjvuViewerActivity extends BaseViewerActivity
     @Override
     protected DecodeService createDecodeService()
     {
-        return new DecodeServiceBase(new DjvuContext());
+        return new DecodeServiceBase(DjvuContext.acquire());
     }
 }
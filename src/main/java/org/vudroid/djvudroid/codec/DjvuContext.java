@@ -5,8 +5,10 @@ import android.util.Log;
 import org.vudroid.core.VuDroidLibraryLoader;
 import org.vudroid.core.codec.CodecContext;
 
-import java.util.concurrent.Semaphore;
-
+/**
+ * One DjVuLibre context with its message pump and decode cache, shared by all open documents.
+ * Every {@link #acquire()} has to be paired with a {@link #recycle()}.
+ */
 public class DjvuContext implements Runnable, CodecContext
 {
     static
@@ -14,81 +16,160 @@ public class DjvuContext implements Runnable, CodecContext
         VuDroidLibraryLoader.load();        
     }
 
+    private static DjvuContext sharedContext;
+    private static int sharedContextUsers;
     private long contextHandle;
+    private final long messagePumpHandle;
+    private final Thread messagePump;
     private static final String DJVU_DROID_CODEC_LIBRARY = "DjvuDroidCodecLibrary";
     private final Object waitObject = new Object();
-    private final Semaphore docSemaphore = new Semaphore(0);
+    /**
+     * Part of the heap limit, which grows with the device's memory, decoded chunks are kept for. They live outside the
+     * heap, next to the tiles and pooled bitmaps.
+     */
+    private static final int CACHE_SIZE_HEAP_DIVISOR = 4;
 
-    public DjvuContext()
+    private DjvuContext()
     {
         this.contextHandle = create();
-        new Thread(this).start();
+        this.messagePumpHandle = createMessagePump(contextHandle);
+        this.messagePump = new Thread(this, "DjvuMessagePump");
+        messagePump.start();
     }
 
-    public DjvuDocument  openDocument(String fileName)
+    public static DjvuContext acquire()
     {
-        final DjvuDocument djvuDocument = DjvuDocument.openDocument(fileName, this, waitObject);
-        try
+        synchronized (DjvuContext.class)
         {
-            docSemaphore.acquire();
-        } catch (InterruptedException e)
+            if (sharedContext == null)
+            {
+                sharedContext = new DjvuContext();
+                sharedContext.setCacheSize(Runtime.getRuntime().maxMemory() / CACHE_SIZE_HEAP_DIVISOR);
+            }
+            sharedContextUsers++;
+            return sharedContext;
+        }
+    }
+
+    public DjvuDocument  openDocument(String fileName)
+    {
+        final DjvuDocument djvuDocument = DjvuDocument.openDocument(fileName, this);
+        // the pump notifies after every message, other documents' ones included
+        synchronized (waitObject)
         {
-            throw new RuntimeException(e);
+            while (!djvuDocument.isInfoDecoded())
+            {
+                try
+                {
+                    waitObject.wait();
+                } catch (InterruptedException e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
         }
         return djvuDocument;
     }
 
+    /**
+     * @return bytes of decoded chunks DjVuLibre keeps for all documents
+     */
+    public synchronized long getCacheSize()
+    {
+        return getCacheSize(contextHandle);
+    }
+
+    public synchronized void setCacheSize(long cacheSize)
+    {
+        setCacheSize(contextHandle, cacheSize);
+    }
+
     long getContextHandle()
     {
         return contextHandle;
     }
 
+    /**
+     * Sleeps until DjVuLibre posts messages and handles them right away.
+     */
     public void run()
     {
-        for(;;)
+        while (waitForMessages(messagePumpHandle))
         {
-            try
+            boolean handled = true;
+            while (handled)
             {
-                synchronized (this) {
-                    if (isRecycled()) return;
-                    handleMessage(contextHandle);
-                    wait(200);
+                try
+                {
+                    synchronized (this) {
+                        if (isRecycled()) return;
+                        handled = handleMessage(contextHandle);
+                    }
                 }
-                synchronized (waitObject)
+                catch (Exception e)
                 {
-                    waitObject.notifyAll();
+                    Log.e(DJVU_DROID_CODEC_LIBRARY, "Codec error", e);
                 }
             }
-            catch (Exception e)
+            synchronized (waitObject)
             {
-                Log.e(DJVU_DROID_CODEC_LIBRARY, "Codec error", e);
+                waitObject.notifyAll();
             }
         }
     }
 
-    @SuppressWarnings({"UnusedDeclaration"})
-    private void handleDocInfo()
-    {
-        docSemaphore.release();
-    }
-
     public void setContentResolver(ContentResolver contentResolver)
     {
     }
 
+    /**
+     * Only reports a context nobody recycled, freeing it would join the message pump on the finalizer thread.
+     */
     @Override
     protected void finalize() throws Throwable
     {
-        recycle();
+        if (!isRecycled())
+        {
+            Log.w(DJVU_DROID_CODEC_LIBRARY, "DjVu context leaked without being recycled");
+        }
         super.finalize();
     }
 
-    public synchronized void recycle() {
-        if (isRecycled()) {
-            return;
+    /**
+     * Gives the shared context back, it's freed once the last user is done with it.
+     */
+    public void recycle() {
+        synchronized (DjvuContext.class) {
+            if (this != sharedContext || --sharedContextUsers > 0) {
+                return;
+            }
+            sharedContext = null;
+            free();
+        }
+    }
+
+    private void free() {
+        synchronized (this) {
+            if (isRecycled()) {
+                return;
+            }
+        }
+        stopMessagePump(messagePumpHandle);
+        // the pump handles messages under the context lock, so it's joined without holding it
+        try {
+            messagePump.join();
+        } catch (InterruptedException e) {
+            Log.e(DJVU_DROID_CODEC_LIBRARY, "Interrupted while waiting for the message pump", e);
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (isRecycled()) {
+                return;
+            }
+            freeMessagePump(messagePumpHandle);
+            free(contextHandle);
+            contextHandle = 0;
         }
-        free(contextHandle);
-        contextHandle = 0;
     }
 
     private boolean isRecycled() {
@@ -97,5 +178,11 @@ public class DjvuContext implements Runnable, CodecContext
 
     private static native long create();
     private static native void free(long contextHandle);
-    private native void handleMessage(long contextHandle);
+    private static native long createMessagePump(long contextHandle);
+    private static native boolean waitForMessages(long messagePumpHandle);
+    private static native void stopMessagePump(long messagePumpHandle);
+    private static native void freeMessagePump(long messagePumpHandle);
+    private static native long getCacheSize(long contextHandle);
+    private static native void setCacheSize(long contextHandle, long cacheSize);
+    private native boolean handleMessage(long contextHandle);
 }
@@ -5,27 +5,35 @@ import org.vudroid.core.codec.CodecDocument;
 public class DjvuDocument implements CodecDocument
 {
     private long documentHandle;
-    private final Object waitObject;
 
-    private DjvuDocument(long documentHandle, Object waitObject)
+    private DjvuDocument(long documentHandle)
     {
         this.documentHandle = documentHandle;
-        this.waitObject = waitObject;
     }
 
-    static DjvuDocument openDocument(String fileName, DjvuContext djvuContext, Object waitObject)
+    static DjvuDocument openDocument(String fileName, DjvuContext djvuContext)
     {
-        return new DjvuDocument(open(djvuContext.getContextHandle(), fileName), waitObject);
+        return new DjvuDocument(open(djvuContext.getContextHandle(), fileName));
     }
 
     private native static long open(long contextHandle, String fileName);
     private native static long getPage(long docHandle, int pageNumber);
     private native static int getPageCount(long docHandle);
+    private native static boolean isInfoDecoded(long docHandle);
+    private native static void getPageSizes(long docHandle, int firstPageNumber, int[] sizes);
     private native static void free(long pageHandle);
 
     public DjvuPage getPage(int pageNumber)
     {
-        return new DjvuPage(getPage(documentHandle, pageNumber), waitObject);
+        return new DjvuPage(getPage(documentHandle, pageNumber));
+    }
+
+    /**
+     * @return whether the document directory has been decoded or has failed to
+     */
+    boolean isInfoDecoded()
+    {
+        return isInfoDecoded(documentHandle);
     }
 
     public int getPageCount()
@@ -33,6 +41,11 @@ public class DjvuDocument implements CodecDocument
         return getPageCount(documentHandle);
     }
 
+    public void getPageSizes(int firstPageNumber, int[] sizes)
+    {
+        getPageSizes(documentHandle, firstPageNumber, sizes);
+    }
+
     @Override
     protected void finalize() throws Throwable
     {
@@ -1,46 +1,39 @@
 package org.vudroid.djvudroid.codec;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.graphics.RectF;
+import org.vudroid.core.codec.AbortToken;
 import org.vudroid.core.codec.CodecPage;
+import org.vudroid.core.codec.PixelFormat;
+import org.vudroid.core.codec.RenderBuffer;
 
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 
 public class DjvuPage implements CodecPage
 {
+    private static final int PAGE_TYPE_BITONAL = 1;
     private long pageHandle;
-    //TODO: remove all async operations
-    private final Object waitObject;
 
-    DjvuPage(long pageHandle, Object waitObject)
+    DjvuPage(long pageHandle)
     {
         this.pageHandle = pageHandle;
-        this.waitObject = waitObject;
-    }
-
-    public boolean isDecoding()
-    {
-        return false;
-//        return !isDecodingDone(pageHandle);
     }
 
     private static native int getWidth(long pageHandle);
 
     private static native int getHeight(long pageHandle);
 
-    private static native boolean isDecodingDone(long pageHandle);
+    private static native long getMemorySize(long pageHandle);
 
-    private static native boolean renderPage(long pageHandle, int targetWidth, int targetHeight, float pageSliceX,
-                                    float pageSliceY,
-                                    float pageSliceWidth,
-                                    float pageSliceHeight, int[] buffer);
+    private static native int getPageType(long pageHandle);
 
-    private static native void free(long pageHandle);
+    private static native boolean renderPage(long pageHandle, int pageWidth, int pageHeight,
+                                    int regionX, int regionY, int regionWidth, int regionHeight,
+                                    ByteBuffer pixels, int stride, int bytesPerPixel, boolean dither, ByteBuffer abortFlag);
 
-    public void waitForDecode()
-    {
-    }
+    private static native void free(long pageHandle);
 
     public int getWidth()
     {
@@ -52,11 +45,43 @@ public class DjvuPage implements CodecPage
         return getHeight(pageHandle);
     }
 
-    public Bitmap renderBitmap(int width, int height, RectF pageSliceBounds)
+    public long getMemorySize()
     {
-        final int[] buffer = new int[width * height];
-        renderPage(pageHandle, width, height, pageSliceBounds.left, pageSliceBounds.top, pageSliceBounds.width(), pageSliceBounds.height(), buffer);
-        return Bitmap.createBitmap(buffer, width, height, Bitmap.Config.RGB_565);
+        return getMemorySize(pageHandle);
+    }
+
+    /**
+     * Bitonal pages, which most scanned books are made of, are rendered as ink coverage at a byte per pixel.
+     */
+    public PixelFormat getPreferredPixelFormat()
+    {
+        return getPageType(pageHandle) == PAGE_TYPE_BITONAL ? PixelFormat.ALPHA_8 : PixelFormat.RGB_565_DITHERED;
+    }
+
+    public boolean renderBitmap(Bitmap bitmap, RectF pageSliceBounds, PixelFormat pixelFormat, AbortToken abortToken)
+    {
+        return renderBitmaps(new Bitmap[]{bitmap}, new RectF[]{pageSliceBounds}, pixelFormat, abortToken);
+    }
+
+    public boolean renderBitmaps(Bitmap[] bitmaps, RectF[] pageSlicesBounds, final PixelFormat pixelFormat, final AbortToken abortToken)
+    {
+        for (Bitmap bitmap : bitmaps)
+        {
+            if (bitmap.getConfig() != pixelFormat.getConfig())
+            {
+                throw new IllegalArgumentException("Bitmaps must be of " + pixelFormat.getConfig() + " config");
+            }
+        }
+        // DjVuLibre writes every format itself, the buffer is copied as is
+        return RenderBuffer.renderSlices(bitmaps, pageSlicesBounds, pixelFormat.getBytesPerPixel(), new RenderBuffer.BandRenderer()
+        {
+            public boolean renderBand(float pageWidth, float pageHeight, Rect region, ByteBuffer pixels, int stride)
+            {
+                renderPage(pageHandle, Math.round(pageWidth), Math.round(pageHeight), region.left, region.top, region.width(), region.height(),
+                        pixels, stride, pixelFormat.getBytesPerPixel(), pixelFormat.isDithered(), abortToken.getFlag());
+                return !abortToken.isAborted();
+            }
+        });
     }
 
     @Override
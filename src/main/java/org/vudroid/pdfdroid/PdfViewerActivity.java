@@ -3,13 +3,22 @@ package org.vudroid.pdfdroid;
 import org.vudroid.core.BaseViewerActivity;
 import org.vudroid.core.DecodeService;
 import org.vudroid.core.DecodeServiceBase;
+import org.vudroid.core.codec.PixelFormat;
 import org.vudroid.pdfdroid.codec.PdfContext;
 
 public class PdfViewerActivity extends BaseViewerActivity
 {
+    private static final long TRUE_COLOR_MIN_HEAP = 48 * 1024 * 1024;
+
     @Override
     protected DecodeService createDecodeService()
     {
-        return new DecodeServiceBase(new PdfContext());
+        final DecodeServiceBase decodeService = new DecodeServiceBase(new PdfContext());
+        // gradients and anti-aliased text of vector pages band in RGB_565, worth twice the memory on roomy heaps
+        if (Runtime.getRuntime().maxMemory() >= TRUE_COLOR_MIN_HEAP)
+        {
+            decodeService.setPixelFormat(PixelFormat.ARGB_8888);
+        }
+        return decodeService;
     }
 }
@@ -7,9 +7,22 @@ import org.vudroid.core.codec.CodecDocument;
 
 public class PdfContext implements CodecContext
 {
+    private static final long MIN_IMAGE_CACHE_SIZE = 4 * 1024 * 1024;
+    private static final int IMAGE_CACHE_HEAP_DIVISOR = 4;
+
     static
     {
         VuDroidLibraryLoader.load();
+        setImageCacheSize((int) getImageCacheSize());
+    }
+
+    /**
+     * A part of the heap limit, which grows with the device's memory. The cache lives outside the heap, next to the tiles
+     * and pooled bitmaps. Images bigger than it are decoded for every tile again.
+     */
+    private static long getImageCacheSize()
+    {
+        return Math.max(MIN_IMAGE_CACHE_SIZE, Runtime.getRuntime().maxMemory() / IMAGE_CACHE_HEAP_DIVISOR);
     }
 
     public CodecDocument openDocument(String fileName)
@@ -24,4 +37,6 @@ public class PdfContext implements CodecContext
 
     public void recycle() {
     }
+
+    private static native void setImageCacheSize(int size);
 }
@@ -1,5 +1,6 @@
 package org.vudroid.pdfdroid.codec;
 
+import android.graphics.RectF;
 import org.vudroid.core.codec.CodecDocument;
 import org.vudroid.core.codec.CodecPage;
 
@@ -7,6 +8,12 @@ public class PdfDocument implements CodecDocument
 {
     private long docHandle;
     private static final int FITZMEMORY = 512 * 1024;
+    /**
+     * Parsed pages kept natively after their last {@link PdfPage} is recycled, so going back to them skips parsing.
+     */
+    private static final int PAGE_CACHE_SIZE = 8 * 1024 * 1024;
+    private static final int PAGE_GEOMETRY_SIZE = 5;
+    private float[] pageGeometry;
 
     private PdfDocument(long docHandle)
     {
@@ -15,7 +22,7 @@ public class PdfDocument implements CodecDocument
 
     public CodecPage getPage(int pageNumber)
     {
-        return PdfPage.createPage(docHandle, pageNumber + 1);
+        return PdfPage.createPage(docHandle, pageNumber + 1, getMediaBox(pageNumber), getRotation(pageNumber));
     }
 
     public int getPageCount()
@@ -23,17 +30,57 @@ public class PdfDocument implements CodecDocument
         return getPageCount(docHandle);
     }
 
+    public void getPageSizes(int firstPageNumber, int[] sizes)
+    {
+        for (int i = 0; i < sizes.length / 2; i++)
+        {
+            final RectF mediaBox = getMediaBox(firstPageNumber + i);
+            final int rotation = getRotation(firstPageNumber + i);
+            sizes[2 * i] = PdfPage.getWidth(mediaBox, rotation);
+            sizes[2 * i + 1] = PdfPage.getHeight(mediaBox, rotation);
+        }
+    }
+
+    private RectF getMediaBox(int pageNumber)
+    {
+        final float[] geometry = getPageGeometry();
+        final int offset = pageNumber * PAGE_GEOMETRY_SIZE;
+        return new RectF(geometry[offset], geometry[offset + 1], geometry[offset + 2], geometry[offset + 3]);
+    }
+
+    private int getRotation(int pageNumber)
+    {
+        final int rotation = (int) getPageGeometry()[pageNumber * PAGE_GEOMETRY_SIZE + 4];
+        // pdf allows any multiple of 90 degrees, negative ones too
+        return ((rotation / 90 * 90) % 360 + 360) % 360;
+    }
+
+    /**
+     * Media boxes and rotations of all pages read from the page tree in one go, page contents aren't parsed for them.
+     */
+    private synchronized float[] getPageGeometry()
+    {
+        if (pageGeometry == null)
+        {
+            pageGeometry = new float[getPageCount() * PAGE_GEOMETRY_SIZE];
+            getPageGeometry(docHandle, pageGeometry);
+        }
+        return pageGeometry;
+    }
+
     static PdfDocument openDocument(String fname, String pwd)
     {
-        return new PdfDocument(open(FITZMEMORY, fname, pwd));
+        return new PdfDocument(open(FITZMEMORY, PAGE_CACHE_SIZE, fname, pwd));
     }
 
-    private static native long open(int fitzmemory, String fname, String pwd);
+    private static native long open(int fitzmemory, int pageCacheSize, String fname, String pwd);
 
     private static native void free(long handle);
 
     private static native int getPageCount(long handle);
 
+    private static native int getPageGeometry(long handle, float[] geometry);
+
     @Override
     protected void finalize() throws Throwable
     {
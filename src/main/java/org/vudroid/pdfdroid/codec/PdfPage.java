@@ -4,7 +4,10 @@ import android.graphics.Bitmap;
 import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import org.vudroid.core.codec.AbortToken;
 import org.vudroid.core.codec.CodecPage;
+import org.vudroid.core.codec.PixelFormat;
+import org.vudroid.core.codec.RenderBuffer;
 
 import java.nio.ByteBuffer;
 
@@ -12,46 +15,91 @@ public class PdfPage implements CodecPage
 {
     private long pageHandle;
     private long docHandle;
-
-    private PdfPage(long pageHandle, long docHandle)
+    private final int width;
+    private final int height;
+    /**
+     * Maps the page to its upright bounds at 1 pixel per unit, rendering only scales it.
+     */
+    private final Matrix pageMatrix = new Matrix();
+    private final float pageMatrixWidth;
+    private final float pageMatrixHeight;
+
+    private PdfPage(long pageHandle, long docHandle, RectF mediaBox, int rotation)
     {
         this.pageHandle = pageHandle;
         this.docHandle = docHandle;
+        this.width = getWidth(mediaBox, rotation);
+        this.height = getHeight(mediaBox, rotation);
+        // page space has y going up
+        pageMatrix.postScale(1, -1);
+        pageMatrix.postRotate(rotation);
+        final RectF bounds = new RectF();
+        pageMatrix.mapRect(bounds, mediaBox);
+        pageMatrix.postTranslate(-bounds.left, -bounds.top);
+        pageMatrixWidth = bounds.width();
+        pageMatrixHeight = bounds.height();
     }
 
-    public boolean isDecoding()
+    public PixelFormat getPreferredPixelFormat()
     {
-        return false;  //TODO
+        return PixelFormat.RGB_565;
     }
 
-    public void waitForDecode()
+    public int getWidth()
     {
-        //TODO
+        return width;
     }
 
-    public int getWidth()
+    public int getHeight()
     {
-        return (int) getMediaBox().width();
+        return height;
     }
 
-    public int getHeight()
+    static int getWidth(RectF mediaBox, int rotation)
+    {
+        return (int) (rotation % 180 == 0 ? mediaBox.width() : mediaBox.height());
+    }
+
+    static int getHeight(RectF mediaBox, int rotation)
+    {
+        return (int) (rotation % 180 == 0 ? mediaBox.height() : mediaBox.width());
+    }
+
+    public long getMemorySize()
     {
-        return (int) getMediaBox().height();
+        return getMemorySize(pageHandle);
     }
 
-    public Bitmap renderBitmap(int width, int height, RectF pageSliceBounds)
+    public boolean renderBitmap(Bitmap bitmap, RectF pageSliceBounds, PixelFormat pixelFormat, AbortToken abortToken)
     {
-        Matrix matrix = new Matrix();
-        matrix.postScale(width / getMediaBox().width(), -height / getMediaBox().height());
-        matrix.postTranslate(0, height);
-        matrix.postTranslate(-pageSliceBounds.left*width, -pageSliceBounds.top*height);
-        matrix.postScale(1/pageSliceBounds.width(), 1/pageSliceBounds.height());
-        return render(new Rect(0,0,width,height), matrix);
+        return renderBitmaps(new Bitmap[]{bitmap}, new RectF[]{pageSliceBounds}, pixelFormat, abortToken);
+    }
+
+    public boolean renderBitmaps(Bitmap[] bitmaps, RectF[] pageSlicesBounds, final PixelFormat pixelFormat, final AbortToken abortToken)
+    {
+        for (Bitmap bitmap : bitmaps)
+        {
+            if (bitmap.getConfig() != pixelFormat.getConfig())
+            {
+                throw new IllegalArgumentException("Bitmaps must be of " + pixelFormat.getConfig() + " config");
+            }
+        }
+        final Matrix matrix = new Matrix();
+        // fitz draws 4 byte samples before they're packed, the buffer has to hold them
+        return RenderBuffer.renderSlices(bitmaps, pageSlicesBounds, 4, new RenderBuffer.BandRenderer()
+        {
+            public boolean renderBand(float pageWidth, float pageHeight, Rect region, ByteBuffer pixels, int stride)
+            {
+                matrix.set(pageMatrix);
+                matrix.postScale(pageWidth / pageMatrixWidth, pageHeight / pageMatrixHeight);
+                return render(region, matrix, pixels, stride, pixelFormat, abortToken);
+            }
+        });
     }
 
-    static PdfPage createPage(long dochandle, int pageno)
+    static PdfPage createPage(long dochandle, int pageno, RectF mediaBox, int rotation)
     {
-        return new PdfPage(open(dochandle, pageno), dochandle);
+        return new PdfPage(open(dochandle, pageno), dochandle, mediaBox, rotation);
     }
 
     @Override
@@ -63,19 +111,12 @@ public class PdfPage implements CodecPage
 
     public synchronized void recycle() {
         if (pageHandle != 0) {
-            free(pageHandle);
+            free(docHandle, pageHandle);
             pageHandle = 0;
         }
     }
 
-    private RectF getMediaBox()
-    {
-        float[] box = new float[4];
-        getMediaBox(pageHandle, box);
-        return new RectF(box[0], box[1], box[2], box[3]);
-    }
-
-    public Bitmap render(Rect viewbox, Matrix matrix)
+    private boolean render(Rect viewbox, Matrix matrix, ByteBuffer pixels, int stride, PixelFormat pixelFormat, AbortToken abortToken)
 	{
         int[] mRect = new int[4];
         mRect[0] = viewbox.left;
@@ -93,29 +134,17 @@ public class PdfPage implements CodecPage
 		matrixArray[4] = matrixSource[2];
 		matrixArray[5] = matrixSource[5];
 
-        int width = viewbox.width();
-        int height = viewbox.height();
-        int[] bufferarray = new int[width * height];
-        nativeCreateView(docHandle, pageHandle, mRect, matrixArray, bufferarray);
-        return Bitmap.createBitmap(bufferarray, width, height, Bitmap.Config.RGB_565);
-        /*ByteBuffer buffer = ByteBuffer.allocateDirect(width * height * 2);
-        render(docHandle, docHandle, mRect, matrixArray, buffer, ByteBuffer.allocateDirect(width * height * 8));
-        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
-        bitmap.copyPixelsFromBuffer(buffer);
-        return bitmap;*/
+        return render(docHandle, pageHandle, mRect, matrixArray, pixels, stride,
+                pixelFormat.getBytesPerPixel(), pixelFormat.isDithered(), abortToken.getFlag());
 	}
 
-    private static native void getMediaBox(long handle, float[] mediabox);
+    private static native long getMemorySize(long handle);
 
-    private static native void free(long handle);
+    private static native void free(long dochandle, long handle);
 
     private static native long open(long dochandle, int pageno);
 
-    private static native void render(long dochandle, long pagehandle,
-		int[] viewboxarray, float[] matrixarray,
-		ByteBuffer byteBuffer, ByteBuffer tempBuffer);
-
-    private native void nativeCreateView(long dochandle, long pagehandle,
+    private static native boolean render(long dochandle, long pagehandle,
 		int[] viewboxarray, float[] matrixarray,
-		int[] bufferarray);
+		ByteBuffer pixels, int stride, int bytesPerPixel, boolean dither, ByteBuffer abortFlag);
 }